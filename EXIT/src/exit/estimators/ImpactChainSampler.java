@@ -9,8 +9,7 @@ import exit.matrices.CrossImpactMatrix;
 import exit.matrices.EXITImpactMatrix;
 import exit.matrices.ImpactChain;
 import java.io.PrintStream;
-import java.util.List;
-import java.util.LinkedList;
+import java.util.SplittableRandom;
 
 /**
  * Objects of this class estimate the summed direct and indirect impacts 
@@ -47,16 +46,44 @@ public class ImpactChainSampler extends Sampler {
      */
     @Override
     public CrossImpactMatrix estimateSummedImpactMatrix(int sampleSize) {
+        return estimateWithStandardError(sampleSize).estimate;
+    }
+    
+    
+    /**
+     * Estimates the summed impact matrix like {@link ImpactChainSampler#estimateSummedImpactMatrix(int)}
+     * together with the standard error of each estimated cell,
+     * combined from the sample variances of the strata of chains of each length.
+     * @param sampleSize Size of the drawn sample of chains of a specific length
+     * @return SampledEstimate : summed impact matrix and its standard errors
+     */
+    @Override
+    public SampledEstimate estimateWithStandardError(int sampleSize) {
         CrossImpactMatrix im = new CrossImpactMatrix(matrix.copy().copyWithoutValues());
+        CrossImpactMatrix se = new CrossImpactMatrix(im.copyWithoutValues());
+        long sampledChainCount = 0;
+        int varCount = matrix.getVarCount();
+        boolean[] unresolved = new boolean[varCount*varCount];
         for(int impactor=1;impactor<=matrix.getVarCount();impactor++) {
             for(int impacted=1;impacted<=matrix.getVarCount();impacted++) {
                 if (impactor != impacted) {
                     reportf("Estimating total impact of %s on %s...%n", matrix.getNameShort(impactor), matrix.getNameShort(impacted));
-                    im.setValue(impactor, impacted, estimateSummedImpact(impactor, impacted, sampleSize));
+                    double summedImpact = 0, variance = 0;
+                    for(int length=2;length<=matrix.getVarCount();length++) {
+                        RunningStatistics sample = sampleStratum(impactor, impacted, length, sampleSize);
+                        summedImpact += sample.mean();
+                        variance += sample.standardError() * sample.standardError();
+                        sampledChainCount += sample.getCount();
+                        if(sample.variance() == 0 && EXITImpactMatrix.chainCount_intermediary(varCount, length-2) > 1) {
+                            unresolved[(impactor-1)*varCount + impacted-1] = true;
+                        }
+                    }
+                    im.setValue(impactor, impacted, summedImpact);
+                    se.setValue(impactor, impacted, Math.sqrt(variance));
                 }
             }
         }
-        return im;
+        return new SampledEstimate(im, se, sampledChainCount, unresolved);
     }
     
     public CrossImpactMatrix estimateSummedImpactMatrix(int sampleSize, int chainLength) {
@@ -93,6 +120,9 @@ public class ImpactChainSampler extends Sampler {
      * where the index of impactor variable is <b>impactor</b> and
      * index of impacted variable is <b>impacted</b>
      * based on a sample of size <b>sampleSize</b>.
+     * If the last hop is summed exactly (see {@link Sampler#setExactLastHop(boolean)}),
+     * the sample consists of chains one variable shorter,
+     * each standing for the summed impact of its continuations by one intermediary.
      * @param impactor Index of impactor variable 
      * @param impacted Index of impacted variable
      * @param chainLength Total length of chains sampled
@@ -100,38 +130,39 @@ public class ImpactChainSampler extends Sampler {
      * @return double: estimated impact 
      */
     double estimateSummedImpact(int impactor, int impacted, int chainLength, int sampleSize) {
+        return sampleStratum(impactor, impacted, chainLength, sampleSize).mean();
+    }
+    
+    
+    /**
+     * Draws a sample of size <b>sampleSize</b> of chains of total length <b>chainLength</b>
+     * from <b>impactor</b> to <b>impacted</b>
+     * and returns the statistics of the summed impact estimates they give:
+     * the relative impact of each chain times the number of chains of its length.
+     * @param impactor Index of impactor variable 
+     * @param impacted Index of impacted variable
+     * @param chainLength Total length of chains sampled
+     * @param sampleSize Size of the sample
+     * @return RunningStatistics : statistics of the summed impact estimates of the sampled chains
+     */
+    RunningStatistics sampleStratum(int impactor, int impacted, int chainLength, int sampleSize) {
         
         assert chainLength > 1 && chainLength <= matrix.getVarCount();
 
-        double sampledMean = sampleMean(drawSample(impactor, impacted, chainLength, sampleSize));
+        SplittableRandom random = stratumRandom(impactor, impacted, chainLength);
+        boolean sumLastHop = isExactLastHop() && chainLength > 2;
+        int drawnLength = sumLastHop ? chainLength-1 : chainLength;
         
         // Get the count of possible intermediary chains between impactor and impacted
-        double chainCount = EXITImpactMatrix.chainCount_intermediary(matrix.getVarCount(), chainLength-2);
+        double chainCount = EXITImpactMatrix.chainCount_intermediary(matrix.getVarCount(), drawnLength-2);
         
-        return sampledMean * chainCount;
-    }
-    
-    
-    
-    
-    /**
-     * Draws a sample of size <b>count</b> of impact chains 
-     * with defined <b>impactorIndex</b> and <b>impactedIndex</b> 
-     * and total length (including impactor and impacted variables) equal to <b>length</b>.
-     * @param impactorIndex Impactor index of the chains to be sampled
-     * @param impactedIndex Impacted index of the chains to be sampled
-     * @param length Total length of chains in the sample
-     * @param count Number of chains in the sample
-     * @return List&lt;ImpactChain&gt;
-     */
-    List<ImpactChain> drawSample(int impactorIndex, int impactedIndex, int length, int count) {
-        List<ImpactChain> sample = new LinkedList<>();
-        while(count-- > 0) {
-            sample.add(ImpactChain.randomChain(this.matrix, impactorIndex, impactedIndex, length));
+        RunningStatistics sample = new RunningStatistics();
+        for(int i=0;i<sampleSize;i++) {
+            ImpactChain chain = ImpactChain.randomChain(matrix, impactor, impacted, drawnLength, random);
+            sample.add((sumLastHop ? chain.continuedByOneIntermediaryImpact() : chain.impact()) * chainCount);
         }
         return sample;
     }
     
     
-    
 }
@@ -5,13 +5,16 @@
  */
 package exit.estimators;
 
+import exit.matrices.ChainEnumerator;
 import exit.matrices.CrossImpactMatrix;
 import exit.matrices.EXITImpactMatrix;
 import exit.matrices.ImpactChain;
 import exit.matrices.SquareMatrix;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Objects of this class perform the estimation of summed impacts 
@@ -20,22 +23,59 @@ import java.util.Set;
  * If the relative impact of the generated chains are greater than or equal to
  * the threshold value, <u>expansions</u> of those <u>significant</u> chains
  * are generated.
+ * <p>The expansions of a chain are generated in the order of decreasing 
+ * absolute direct impact of the last variable of the chain,
+ * and the generation stops as soon as the impact of the next expansion 
+ * is below the threshold, as none of the remaining expansions can be significant.
+ * The impacts of the pruned chains and their expansions are bounded by
+ * the sums of walks in the matrix of absolute relative impacts,
+ * which gives an upper bound for the error of the estimate in each cell
+ * (see {@link ImpactThresholdPruner#estimateWithErrorBound(double)}).</p>
+ * <p>Only the non-zero direct impacts are followed, 
+ * both in the walk and in the error bounds.</p>
+ * <p>The chains are walked in fork/join tasks by impactor and first intermediary variable
+ * (see {@link Pruner#setParallelism(int)}).
+ * Each task sums into arrays of its own, which are merged when the tasks are joined.</p>
  * @author jmpaon
  */
 public class ImpactThresholdPruner extends Pruner {
+    
+    /** Absolute relative direct impacts in a 0-based flat array */
+    private final double[] absoluteWeights;
 
     public ImpactThresholdPruner(EXITImpactMatrix matrix) {
-        super(matrix);
+        this(matrix, null);
     }
 
     public ImpactThresholdPruner(EXITImpactMatrix matrix, PrintStream reportingStream) {
         super(matrix, reportingStream);
+        this.absoluteWeights = matrix.relativeImpacts();
+        for(int i=0;i<absoluteWeights.length;i++) absoluteWeights[i] = Math.abs(absoluteWeights[i]);
     }
 
     @Override
     public CrossImpactMatrix estimateSummedImpactMatrix(double threshold) {
+        return estimateWithErrorBound(threshold).estimate;
+    }
+    
+    
+    /**
+     * Estimates the summed impact matrix by pruning strategy 
+     * and bounds the error caused by the pruning.
+     * The impact of a pruned chain of length <i>l</i> ending at variable <i>v</i>
+     * and the impacts of its expansions are together bounded by 
+     * its absolute impact times the entries of 
+     * <i>I + |W| + |W|&sup2; + ... + |W|<sup>n-l</sup></i> on row <i>v</i>,
+     * where <i>|W|</i> is the matrix of absolute relative direct impacts.
+     * The bounds of all pruned chains are summed by impacted variable.
+     * @param threshold The threshold value for significant relative impact
+     * @return PrunedEstimate : estimated summed impacts and their error bounds
+     */
+    public PrunedEstimate estimateWithErrorBound(double threshold) {
+        if(threshold < 0) throw new IllegalArgumentException("threshold cannot be negative");
         return prunedSummedImpactMatrix(threshold, matrix);
     }
+    
 
     /**
      * Estimates by pruning strategy and returns
@@ -46,50 +86,200 @@ public class ImpactThresholdPruner extends Pruner {
      * and impacted variables are in columns.
      * @param impactThreshold The low bound for inclusion for the impact of chains that are summed in the matrix.
      * See {@link ImpactChain#highImpactChains(double)}.
-     * @return <code>EXITImpactMatrix</code> with the summed direct and indirect values between variables
+     * @return <code>PrunedEstimate</code> with the summed direct and indirect values between variables
      */
-    private CrossImpactMatrix prunedSummedImpactMatrix(double impactThreshold, EXITImpactMatrix exitImpactMatrix) {
+    private PrunedEstimate prunedSummedImpactMatrix(double impactThreshold, EXITImpactMatrix exitImpactMatrix) {
         CrossImpactMatrix resultMatrix = new CrossImpactMatrix(new SquareMatrix(exitImpactMatrix).copy().copyWithoutValues());
-        double totalCount = 0;
-        for (int impactor = 1; impactor <= resultMatrix.getVarCount(); impactor++) {
-            ImpactChain chain = new ImpactChain(exitImpactMatrix, Arrays.asList(impactor));
-            double count = sumImpacts(chain, impactThreshold, resultMatrix);
-            totalCount += count;
+        CrossImpactMatrix boundMatrix = new CrossImpactMatrix(resultMatrix.copyWithoutValues());
+        ChainEnumerator enumerator = new ChainEnumerator(exitImpactMatrix);
+        int varCount = resultMatrix.getVarCount();
+        
+        List<ImpactorTask> tasks = new ArrayList<>();
+        for (int impactor = 1; impactor <= varCount; impactor++) {
+            tasks.add(new ImpactorTask(enumerator, impactor, impactThreshold));
         }
-        return resultMatrix;
+        runTasks(tasks);
+        
+        long totalCount = 0;
+        for (ImpactorTask task : tasks) {
+            PrunedSums sums = task.join();
+            totalCount += sums.count;
+            for (int impacted = 1; impacted <= varCount; impacted++) {
+                if (task.impactor != impacted) {
+                    resultMatrix.setValue(task.impactor, impacted, sums.summedImpacts[impacted]);
+                    boundMatrix.setValue(task.impactor, impacted, task.bounds[impacted-1]);
+                }
+            }
+        }
+        report(String.format("%d significant impact chains summed", totalCount));
+        return new PrunedEstimate(resultMatrix, boundMatrix, totalCount);
     }
-
+    
+    
     /**
-     * If impact of <b>chain</b> is higher than <b>impactThreshold</b>,
-     * it is added to <b>resultMatrix</b> and the possible immediate expansions of
-     * <b>chain</b> are generated
-     * and {@link CrossImpactMatrix#sumImpacts(exit.ImpactChain, double, exit.CrossImpactMatrix)}
-     * is called recursively on the expansion chains.
-     * @param chain <code>ImpactChain</code> to consider for addition to <b>resultMatrix</b>
-     * @param impactThreshold <b>chain</b> must have an impact of at least this value to be added to <b>resultMatrix</b>
-     * @param resultMatrix <code>EXITImpactMatrix</code> where the significant values are summed
-     * @return count of significant impact chains found in <b>chain</b> and its expansions.
+     * Sums of one pruning task: the significant impacts by impacted variable,
+     * the impacts of the chains whose expansions were cut 
+     * (see {@link ChainEnumerator#sumSignificant(int, double, double[], double[][])})
+     * and the number of significant chains.
      */
-    private double sumImpacts(ImpactChain chain, double impactThreshold, CrossImpactMatrix resultMatrix) {
-        double count = 0;
-        if (Math.abs(chain.impact()) >= impactThreshold) {
-            count++;
-            int impactor = chain.impactorIndex();
-            int impacted = chain.impactedIndex();
-            double accumulatedValue = resultMatrix.getValue(impactor, impacted);
-            double additionValue = chain.impact();
-            double newValue = accumulatedValue + additionValue;
-            if (impactor != impacted) {
-                resultMatrix.setValue(impactor, impacted, newValue);
+    private static class PrunedSums {
+        
+        final double[] summedImpacts;
+        final double[][] prunedImpacts;
+        long count;
+        
+        PrunedSums(int varCount) {
+            summedImpacts = new double[varCount+1];
+            prunedImpacts = new double[varCount][];
+        }
+        
+        /**
+         * Adds the sums of <b>other</b> to these sums.
+         * @param other Sums of another task
+         */
+        void add(PrunedSums other) {
+            for(int i=0;i<summedImpacts.length;i++) summedImpacts[i] += other.summedImpacts[i];
+            for(int k=0;k<prunedImpacts.length;k++) {
+                double[] p = other.prunedImpacts[k];
+                if(p == null) continue;
+                if(prunedImpacts[k] == null) {
+                    prunedImpacts[k] = p;
+                } else {
+                    for(int i=0;i<p.length;i++) prunedImpacts[k][i] += p[i];
+                }
             }
-            if (chain.hasExpansion()) {
-                Set<ImpactChain> expansions = chain.continuedByOne();
-                for (ImpactChain ic : expansions) {
-                    count += sumImpacts(ic, impactThreshold, resultMatrix);
+            count += other.count;
+        }
+    }
+    
+    
+    /**
+     * Fork/join task that sums the significant chains starting from an impactor.
+     * The task forks a subtask for each significant direct impact of the impactor,
+     * records the pruned direct impacts
+     * and computes the error bounds of the impactor from the merged sums.
+     */
+    private class ImpactorTask extends RecursiveTask<PrunedSums> {
+        
+        final ChainEnumerator enumerator;
+        final int impactor;
+        final double threshold;
+        /** Error bounds by impacted variable, 0-based, set when the task is done */
+        double[] bounds;
+        
+        ImpactorTask(ChainEnumerator enumerator, int impactor, double threshold) {
+            this.enumerator = enumerator;
+            this.impactor = impactor;
+            this.threshold = threshold;
+        }
+        
+        @Override
+        protected PrunedSums compute() {
+            int varCount = enumerator.getVarCount();
+            int significant = enumerator.significantImpactCount(impactor, threshold);
+            
+            List<FirstHopTask> subtasks = new ArrayList<>();
+            for(int rank=0;rank<significant;rank++) {
+                subtasks.add(new FirstHopTask(enumerator, impactor, enumerator.impactedByRank(impactor, rank), threshold));
+            }
+            invokeAll(subtasks);
+            
+            PrunedSums sums = new PrunedSums(varCount);
+            for(FirstHopTask subtask : subtasks) sums.add(subtask.join());
+            
+            if(significant < enumerator.successorCount(impactor)) {
+                int remaining = varCount - 1;
+                if(sums.prunedImpacts[remaining] == null) sums.prunedImpacts[remaining] = new double[varCount*varCount];
+                sums.prunedImpacts[remaining][(impactor-1)*varCount + significant] += 1;
+            }
+            bounds = errorBounds(enumerator, sums.prunedImpacts);
+            return sums;
+        }
+    }
+    
+    
+    /**
+     * Fork/join task that sums the significant chains 
+     * starting from an impactor and continuing to a first intermediary variable,
+     * using an enumerator and accumulators of its own.
+     */
+    private static class FirstHopTask extends RecursiveTask<PrunedSums> {
+        
+        final ChainEnumerator enumerator;
+        final int impactor;
+        final int firstIntermediary;
+        final double threshold;
+        
+        FirstHopTask(ChainEnumerator enumerator, int impactor, int firstIntermediary, double threshold) {
+            this.enumerator = enumerator;
+            this.impactor = impactor;
+            this.firstIntermediary = firstIntermediary;
+            this.threshold = threshold;
+        }
+        
+        @Override
+        protected PrunedSums compute() {
+            PrunedSums sums = new PrunedSums(enumerator.getVarCount());
+            sums.count = enumerator.copy().sumSignificant(impactor, firstIntermediary, threshold, sums.summedImpacts, sums.prunedImpacts);
+            return sums;
+        }
+    }
+    
+    
+    /**
+     * Sums the error bounds of the chains pruned from one impactor.
+     * First the absolute impacts of the pruned chains are collected 
+     * by their last variable and the number <i>k</i> of variables not in them.
+     * The bound of the impacts collected with <i>k</i> remaining variables
+     * is the impact times <i>|W|<sup>h</sup></i> for <i>h</i> = 0..<i>k</i>;
+     * the powers are accumulated in Horner's form from the highest power down,
+     * adding the impacts whose range of <i>h</i> covers the current power.
+     * @param enumerator <tt>ChainEnumerator</tt> that pruned the chains
+     * @param prunedImpacts Impacts of chains whose expansions were pruned, 
+     * see {@link ChainEnumerator#sumSignificant(int, double, double[], double[][])}
+     * @return double[] : error bound for each impacted variable, 0-based
+     */
+    private double[] errorBounds(ChainEnumerator enumerator, double[][] prunedImpacts) {
+        final int n = enumerator.getVarCount();
+        
+        /* Impacts of the pruned chains with k remaining variables at [k * n + v] */
+        double[] pruned = new double[n*n];
+        for(int k=1;k<n;k++) {
+            if(prunedImpacts[k] == null) continue;
+            for(int v=0;v<n;v++) {
+                double cut = 0;
+                for(int rank=0;rank<enumerator.successorCount(v+1);rank++) {
+                    cut += prunedImpacts[k][v*n + rank];
+                    if(cut == 0) continue;
+                    int u = enumerator.impactedByRank(v+1, rank) - 1;
+                    pruned[(k-1)*n + u] += cut * absoluteWeights[v*n + u];
                 }
             }
         }
-        return count;
+        
+        double[] bound = new double[n];
+        double[] next = new double[n];
+        double[] suffix = new double[n];
+        for(int k=n-1; k>=0; k--) {
+            if(k < n-1) {
+                Arrays.fill(next, 0);
+                for(int v=0;v<n;v++) {
+                    double b = bound[v];
+                    if(b == 0) continue;
+                    int row = v*n;
+                    for(int rank=0;rank<enumerator.successorCount(v+1);rank++) {
+                        int j = enumerator.impactedByRank(v+1, rank) - 1;
+                        next[j] += b * absoluteWeights[row + j];
+                    }
+                }
+                double[] swap = bound; bound = next; next = swap;
+            }
+            for(int v=0;v<n;v++) {
+                suffix[v] += pruned[k*n + v];
+                bound[v] += suffix[v];
+            }
+        }
+        return bound;
     }
     
 }
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.estimators;
+
+import exit.matrices.CrossImpactMatrix;
+import exit.matrices.EXITImpactMatrix;
+import exit.matrices.SquareMatrix;
+
+/**
+ * <tt>MatrixPowerComputer</tt> computes the summed impacts of short impact chains
+ * exactly with matrix algebra instead of enumerating the chains.
+ * With <i>W</i> the matrix of relative direct impacts (whose diagonal is 0),
+ * the summed impacts of chains of
+ * <ul>
+ *  <li>length 2 are the entries of <i>W</i>,</li>
+ *  <li>length 3 are the off-diagonal entries of <i>W</i>&sup2;,
+ *  as the zero diagonal of <i>W</i> already excludes chains that visit a variable twice,</li>
+ *  <li>length 4 are the off-diagonal entries of <i>W</i>&sup3;
+ *  minus the walks <i>i</i>&rarr;<i>k</i>&rarr;<i>i</i>&rarr;<i>j</i>
+ *  and <i>i</i>&rarr;<i>j</i>&rarr;<i>l</i>&rarr;<i>j</i> that return to a variable,
+ *  plus the walk <i>i</i>&rarr;<i>j</i>&rarr;<i>i</i>&rarr;<i>j</i> that is subtracted twice:
+ *  <i>S4<sub>ij</sub> = W&sup3;<sub>ij</sub> - W<sub>ij</sub>(W&sup2;<sub>ii</sub> + W&sup2;<sub>jj</sub>) + W<sub>ij</sub>W<sub>ji</sub>W<sub>ij</sub></i>.</li>
+ * </ul>
+ * The cost is O(n^3) regardless of the number of chains,
+ * so these strata need not be enumerated or sampled even in matrices of hundreds of variables.
+ * @author jmpaon
+ */
+public class MatrixPowerComputer {
+
+    /** Length of the longest chains whose summed impacts can be computed */
+    public static final int MAX_LENGTH = 4;
+
+    /** The direct impact matrix whose summed impacts are computed */
+    public final EXITImpactMatrix matrix;
+
+    private final int varCount;
+    /** Relative direct impacts <i>W</i> in a 0-based flat array */
+    private final double[] w1;
+    /** <i>W</i>&sup2;, computed when first needed */
+    private double[] w2;
+    /** <i>W</i>&sup3;, computed when first needed */
+    private double[] w3;
+
+
+    /**
+     * Constructor
+     * @param matrix <tt>EXITImpactMatrix</tt> whose summed impacts are computed
+     */
+    public MatrixPowerComputer(EXITImpactMatrix matrix) {
+        assert matrix != null;
+        this.matrix = matrix;
+        this.varCount = matrix.getVarCount();
+        this.w1 = matrix.relativeImpacts();
+    }
+
+
+    /**
+     * Returns the summed impacts of chains of lengths
+     * <b>minLength</b>..<b>maxLength</b> in a <tt>CrossImpactMatrix</tt>.
+     * @param minLength Length of the shortest chains included, at least 2
+     * @param maxLength Length of the longest chains included, at most {@link MatrixPowerComputer#MAX_LENGTH}
+     * @return CrossImpactMatrix : summed impacts of the chains
+     */
+    public CrossImpactMatrix computeSummedImpactMatrix(int minLength, int maxLength) {
+        if(minLength < 2 || maxLength > MAX_LENGTH || minLength > maxLength)
+            throw new IllegalArgumentException(String.format("Invalid chain length range %d..%d, lengths 2..%d can be computed", minLength, maxLength, MAX_LENGTH));
+
+        double[] sums = new double[varCount*varCount];
+        for(int length=minLength;length<=maxLength;length++) {
+            double[] s = summedImpacts(length);
+            for(int i=0;i<sums.length;i++) sums[i] += s[i];
+        }
+
+        CrossImpactMatrix result = new CrossImpactMatrix(new SquareMatrix(matrix).copyWithoutValues());
+        for(int impactor=1;impactor<=varCount;impactor++) {
+            for(int impacted=1;impacted<=varCount;impacted++) {
+                if(impactor != impacted) result.setValue(impactor, impacted, sums[(impactor-1)*varCount + impacted-1]);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the summed relative impacts of all chains of exactly <b>length</b> variables
+     * for every impactor-impacted pair.
+     * @param length Number of variables in the summed chains, 2..{@link MatrixPowerComputer#MAX_LENGTH}
+     * @return double[] : summed impacts of the chains from <i>i</i> to <i>j</i>
+     * at index <tt>(i-1) * varCount + (j-1)</tt>
+     */
+    public double[] summedImpacts(int length) {
+        if(length < 2 || length > MAX_LENGTH)
+            throw new IllegalArgumentException(String.format("Summed impacts of chains of length %d cannot be computed, lengths 2..%d can", length, MAX_LENGTH));
+
+        final int n = varCount;
+        double[] sums = new double[n*n];
+        if(length > n) return sums;
+
+        switch(length) {
+            case 2:
+                System.arraycopy(w1, 0, sums, 0, sums.length);
+                break;
+            case 3:
+                System.arraycopy(square(), 0, sums, 0, sums.length);
+                break;
+            case 4:
+                double[] sq = square();
+                double[] cube = cube();
+                for(int i=0;i<n;i++) {
+                    for(int j=0;j<n;j++) {
+                        double wij = w1[i*n + j];
+                        sums[i*n + j] = cube[i*n + j] - wij * (sq[i*n + i] + sq[j*n + j]) + wij * w1[j*n + i] * wij;
+                    }
+                }
+                break;
+        }
+
+        for(int i=0;i<n;i++) sums[i*n + i] = 0;
+        return sums;
+    }
+
+
+    private double[] square() {
+        if(w2 == null) w2 = SquareMatrix.multiply(w1, w1, varCount);
+        return w2;
+    }
+
+    private double[] cube() {
+        if(w3 == null) w3 = SquareMatrix.multiply(square(), w1, varCount);
+        return w3;
+    }
+
+}
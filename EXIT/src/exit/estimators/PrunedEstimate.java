@@ -0,0 +1,46 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.estimators;
+
+import exit.matrices.CrossImpactMatrix;
+
+/**
+ * Summed impact matrix estimated by pruning, 
+ * together with an upper bound for the impacts discarded by the pruning.
+ * The absolute difference between the estimate and the summed impact
+ * of all impact chains is at most the bound in each cell.
+ * @author jmpaon
+ */
+public class PrunedEstimate {
+    
+    /** Summed impacts of the chains that were not pruned */
+    public final CrossImpactMatrix estimate;
+    
+    /** 
+     * Upper bound for the sum of absolute impacts of the pruned chains 
+     * between each impactor and impacted variable 
+     */
+    public final CrossImpactMatrix errorBound;
+    
+    /** Number of chains whose impacts are summed in <b>estimate</b> */
+    public final long chainCount;
+    
+    public PrunedEstimate(CrossImpactMatrix estimate, CrossImpactMatrix errorBound, long chainCount) {
+        assert estimate != null && errorBound != null;
+        assert estimate.getVarCount() == errorBound.getVarCount();
+        this.estimate = estimate;
+        this.errorBound = errorBound;
+        this.chainCount = chainCount;
+    }
+    
+    /**
+     * @return The greatest error bound of any cell of the estimate
+     */
+    public double maxErrorBound() {
+        return errorBound.matrixMax(true);
+    }
+    
+}
@@ -8,6 +8,8 @@ package exit.estimators;
 import exit.matrices.CrossImpactMatrix;
 import exit.matrices.EXITImpactMatrix;
 import java.io.PrintStream;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  *
@@ -18,6 +20,9 @@ public abstract class Pruner {
     public final EXITImpactMatrix matrix;
     public final PrintStream reportingStream;    
     
+    /** Runner of the pruning tasks */
+    private final TaskRunner runner = new TaskRunner();
+    
     public Pruner(EXITImpactMatrix matrix) {
         this(matrix, null);
     }
@@ -32,6 +37,31 @@ public abstract class Pruner {
         if(this.reportingStream != null) reportingStream.println(text);
     }
     
+    
+    /**
+     * Sets the number of threads used by the pruner.
+     * @param parallelism Number of threads, must be at least 1
+     */
+    public void setParallelism(int parallelism) {
+        runner.setParallelism(parallelism);
+    }
+    
+    /**
+     * @return The number of threads used by the pruner
+     */
+    public int getParallelism() {
+        return runner.getParallelism();
+    }
+    
+    /**
+     * Runs <b>tasks</b> with the threads of the pruner and waits until all of them are done.
+     * The results of the tasks can then be read with <tt>join</tt>.
+     * @param tasks Tasks to run
+     */
+    protected void runTasks(Collection<? extends ForkJoinTask<?>> tasks) {
+        runner.invokeAll(tasks);
+    }
+    
     /**
      * Estimates a summed impact matrix for <b>matrix</b> based on a pruning strategy.
      * @param threshold The threshold value for significant relative impact.
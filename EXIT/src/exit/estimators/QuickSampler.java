@@ -7,10 +7,16 @@ package exit.estimators;
 
 import exit.matrices.CrossImpactMatrix;
 import exit.matrices.EXITImpactMatrix;
+import exit.matrices.RandomChainGenerator;
 import exit.matrices.SquareMatrix;
+import exit.matrices.WeightedChainGenerator;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 /**
  * QuickSampler is a computationally more efficient implementation of <tt>Sampler</tt> 
@@ -18,6 +24,24 @@ import java.util.List;
  * QuickSampler estimates the summed impact matrix by performing full computation
  * for short impact chains and estimating the summed impacts of longer chains
  * by means of a stratified sample.
+ * Each stratum (the chains of a specific length between an impactor and an impacted variable)
+ * is sampled in a fork/join task of its own with a random number stream of its own,
+ * so the strata are sampled concurrently by the threads of the sampler 
+ * (see {@link Sampler#setParallelism(int)}).
+ * If the sampler is seeded (see {@link Sampler#setSeed(long)}),
+ * the estimates do not depend on the number of threads.
+ * <p>With a tolerance (see {@link QuickSampler#setTolerance(double, double)}),
+ * the sampling is adaptive: the sampling of a stratum stops
+ * as soon as the half-width of the 95% confidence interval of its estimated summed impact
+ * is within the tolerance, and the sample size is only the greatest sample drawn.
+ * Strata with little variance, such as those where all chains have no impact,
+ * are then estimated from a small fraction of the sample size.</p>
+ * <p>The chains are drawn uniformly, or by importance sampling 
+ * (see {@link QuickSampler#setImportanceSampling(boolean)})
+ * in proportion to the impacts along them.</p>
+ * <p>With a time budget (see {@link QuickSampler#setTimeBudget(long)}),
+ * the strata are sampled in rounds until the time runs out,
+ * and the estimate is the best the time allows.</p>
  * @author juha
  */
 public class QuickSampler extends Sampler {
@@ -25,6 +49,42 @@ public class QuickSampler extends Sampler {
     private final int computeUpToLength;
     private static final int COMPUTATION_CHAIN_LIMIT = 50000;
     
+    /** Normal quantile of the 95% confidence interval used in adaptive sampling */
+    public static final double CONFIDENCE_Z = 1.96;
+    /** Number of chains drawn from a stratum before adaptive sampling may stop */
+    public static final int MIN_ADAPTIVE_SAMPLE = 1000;
+    /** Number of chains drawn between the convergence checks of adaptive sampling */
+    private static final int ADAPTIVE_CHECK_INTERVAL = 100;
+    /** Share of the remaining sample budget that is split equally among the strata after the pilot sample */
+    public static final double EQUAL_ALLOCATION_SHARE = 0.5;
+    
+    /** Absolute tolerance of the stratum estimates, 0 if not used */
+    private double absoluteTolerance = 0;
+    /** Tolerance of the stratum estimates relative to the estimates, 0 if not used */
+    private double relativeTolerance = 0;
+    /** Number of chains sampled in the latest estimation, summed over the sampled lengths */
+    private long sampledChainCount = 0;
+    /** Number of draws in the latest estimation, each giving a chain of every length with shared permutations */
+    private long drawCount = 0;
+    /** Are the chains drawn in proportion to their impacts instead of uniformly */
+    private boolean importanceSampling = false;
+    /** Weighted chain generator of each sampling thread, created when importance sampling is set */
+    private ThreadLocal<WeightedChainGenerator> weightedGenerators;
+    /** Are the chains of all sampled lengths drawn as prefixes of the same random permutations */
+    private boolean sharedPermutations = false;
+    /** Total number of draws allocated to the strata after the pilot sample, 0 if not used */
+    private long sampleBudget = 0;
+    /** Time allowed for an estimation in milliseconds, 0 if not used */
+    private long timeBudget = 0;
+    /** Value of <tt>System.nanoTime()</tt> when the time budget of the current estimation runs out */
+    private long deadline;
+    /** Value of <tt>System.nanoTime()</tt> when the next intermediate estimate is due */
+    private long nextSnapshot;
+    /** Interval of intermediate estimates in milliseconds, 0 if not used */
+    private long snapshotInterval = 0;
+    /** Receiver of intermediate estimates */
+    private Consumer<SampledEstimate> snapshotConsumer;
+
 
     /**
      * Constructor for <tt>QuickSampler</tt>
@@ -63,6 +123,18 @@ public class QuickSampler extends Sampler {
     }
     
     
+    /**
+     * Returns the length of the longest chains whose summed impacts are computed instead of sampled.
+     * The chains up to length {@link MatrixPowerComputer#MAX_LENGTH} are always computed with matrix products,
+     * so this is the <i>computeUpToLength</i> of the sampler or that length if it is greater,
+     * but at most the number of variables.
+     * @return int : length of the longest computed chains
+     */
+    public int getComputedLength() {
+        return Math.min(Math.max(computeUpToLength, MatrixPowerComputer.MAX_LENGTH), matrix.getVarCount());
+    }
+    
+    
     /**
      * Suggests a sensible <i>computeUpToLength</i> value, 
      * based on the idea that the number of chains of a specific length
@@ -76,6 +148,157 @@ public class QuickSampler extends Sampler {
     }
     
     
+    /**
+     * Sets the tolerance of adaptive sampling.
+     * The sampling of a stratum stops when the half-width of the 95% confidence interval
+     * of its estimated summed impact is at most <b>absolute</b>
+     * or at most <b>relative</b> times the absolute value of the estimate,
+     * but not before {@link QuickSampler#MIN_ADAPTIVE_SAMPLE} chains have been drawn.
+     * If both tolerances are 0, every stratum is estimated from a sample of the full sample size.
+     * @param absolute Absolute tolerance, 0 or greater
+     * @param relative Relative tolerance, 0 or greater
+     */
+    public void setTolerance(double absolute, double relative) {
+        if(absolute < 0 || relative < 0) throw new IllegalArgumentException("Tolerance cannot be negative");
+        this.absoluteTolerance = absolute;
+        this.relativeTolerance = relative;
+    }
+    
+    /**
+     * @return <i>true</i> if the sampling stops when a stratum estimate is within the tolerance
+     */
+    public boolean isAdaptive() {
+        return absoluteTolerance > 0 || relativeTolerance > 0;
+    }
+    
+    /**
+     * Sets whether the sampled chains are drawn by importance sampling.
+     * In importance sampling, each intermediary of a chain is drawn 
+     * in proportion to the absolute impact of the previous variable on it
+     * and the impact of the chain is divided by its probability of being drawn
+     * (see {@link WeightedChainGenerator}).
+     * In sparse matrices, where most uniformly drawn chains have no impact,
+     * this gives estimates with far less variance from the same sample size.
+     * @param importanceSampling <i>true</i> for importance sampling, <i>false</i> for uniform sampling
+     */
+    public void setImportanceSampling(boolean importanceSampling) {
+        if(importanceSampling && weightedGenerators == null) {
+            WeightedChainGenerator generator = new WeightedChainGenerator(frozen);
+            weightedGenerators = ThreadLocal.withInitial(generator::copy);
+        }
+        this.importanceSampling = importanceSampling;
+    }
+    
+    /**
+     * @return <i>true</i> if the sampled chains are drawn by importance sampling
+     */
+    public boolean isImportanceSampling() {
+        return importanceSampling;
+    }
+    
+    /**
+     * Sets whether the chains of all sampled lengths between two variables
+     * are sampled at once as the prefixes of shared random orders of the intermediaries
+     * (see {@link QuickSampler#sampleStrata(int, int, int, int, int, java.util.SplittableRandom)}),
+     * instead of sampling each length separately.
+     * This divides the cost of sampling all lengths by roughly the number of sampled lengths.
+     * @param sharedPermutations <i>true</i> for sampling all lengths with shared permutations
+     */
+    public void setSharedPermutations(boolean sharedPermutations) {
+        this.sharedPermutations = sharedPermutations;
+    }
+    
+    /**
+     * @return <i>true</i> if all lengths are sampled at once with shared permutations
+     */
+    public boolean isSharedPermutations() {
+        return sharedPermutations;
+    }
+    
+    /**
+     * Sets a total sample budget that is allocated to the strata in proportion to their variance.
+     * With a budget, the sample size given to {@link QuickSampler#estimateSummedImpactMatrix(int)}
+     * is the size of a pilot sample drawn from every stratum,
+     * and the rest of the budget is allocated to the strata 
+     * in proportion to the standard deviations observed in the pilot samples.
+     * A draw gives one chain, or one chain of every sampled length with shared permutations.
+     * @param sampleBudget Total number of draws, 0 for the same sample size in every stratum
+     */
+    public void setSampleBudget(long sampleBudget) {
+        if(sampleBudget < 0) throw new IllegalArgumentException("Sample budget cannot be negative");
+        this.sampleBudget = sampleBudget;
+    }
+    
+    /**
+     * @return Total number of draws allocated to the strata, 0 if the sample budget is not used
+     */
+    public long getSampleBudget() {
+        return sampleBudget;
+    }
+
+    /**
+     * Sets the time allowed for estimating the summed impact matrix.
+     * With a time budget, the sample size given to {@link QuickSampler#estimateSummedImpactMatrix(int)}
+     * is the size of one round: every stratum gets a sample of that size in each round,
+     * and new rounds are drawn and added to the earlier ones until the time runs out.
+     * A round in progress stops when the time runs out:
+     * the time is checked after every 100 chains drawn from a stratum,
+     * so the strata sampled after the time has run out get only 100 chains in that round.
+     * The full computation of the short chains is always finished
+     * and every stratum gets at least 100 chains in the first round,
+     * so a very short budget may be exceeded.
+     * If the sampling is adaptive, the strata within the tolerance are left out of further rounds
+     * and the sampling stops early when all strata are within the tolerance.
+     * The sample budget (see {@link QuickSampler#setSampleBudget(long)}) is not used with a time budget.
+     * @param milliseconds Time allowed for an estimation, 0 for no time budget
+     */
+    public void setTimeBudget(long milliseconds) {
+        if(milliseconds < 0) throw new IllegalArgumentException("Time budget cannot be negative");
+        this.timeBudget = milliseconds;
+    }
+
+    /**
+     * @return Time allowed for an estimation in milliseconds, 0 if the time budget is not used
+     */
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Sets <b>consumer</b> to receive the intermediate estimates of the summed impact matrix
+     * when sampling with a time budget (see {@link QuickSampler#setTimeBudget(long)}).
+     * An intermediate estimate is given when <b>interval</b> milliseconds have passed since the previous one.
+     * A round in progress is stopped for the intermediate estimate like when the time runs out,
+     * and the sampling continues with a new round after it,
+     * so the intervals are about <b>interval</b> even if the rounds are long.
+     * @param interval Interval of intermediate estimates in milliseconds, greater than 0
+     * @param consumer Receiver of the intermediate estimates, <i>null</i> for no intermediate estimates
+     */
+    public void setSnapshots(long interval, Consumer<SampledEstimate> consumer) {
+        if(interval <= 0) throw new IllegalArgumentException("Snapshot interval must be greater than 0");
+        this.snapshotInterval = interval;
+        this.snapshotConsumer = consumer;
+    }
+    
+    /**
+     * @return Number of chains sampled in the latest estimation of the summed impact matrix.
+     * With shared permutations, each draw gives a sampled chain of every sampled length,
+     * so this is greater than the number of draws (see {@link QuickSampler#getDrawCount()}).
+     */
+    public long getSampledChainCount() {
+        return sampledChainCount;
+    }
+    
+    /**
+     * @return Number of draws in the latest estimation of the summed impact matrix,
+     * one random order of intermediaries per draw with shared permutations and one chain per draw otherwise;
+     * the sample budget (see {@link QuickSampler#setSampleBudget(long)}) is counted in draws
+     */
+    public long getDrawCount() {
+        return drawCount;
+    }
+    
+    
     /**
      * Returns a <tt>CrossImpactMatrix</tt> that contains the <u>estimated</u> summed 
      * direct and indirect impacts between the variables present in <b>matrix</b>. 
@@ -83,52 +306,295 @@ public class QuickSampler extends Sampler {
      * for longer chains, the summed impacts are estimated based on a stratified sample.
      * @param sampleSize Size of the drawn sample of chains of a specific length; 
      * for each variable pair, the average impact of chains of length x is based on 
-     * a sample of size <b>sampleSize</b>.
+     * a sample of size <b>sampleSize</b>, or at most <b>sampleSize</b> if the sampling is adaptive.
+     * With a sample budget (see {@link QuickSampler#setSampleBudget(long)}), 
+     * this is the size of the pilot sample of each stratum.
+     * With a time budget (see {@link QuickSampler#setTimeBudget(long)}),
+     * this is the size of the sample of each stratum in one round.
      * @return CrossImpactMatrix : matrix that contains summed direct and indirect impacts.
      */
     @Override
     public CrossImpactMatrix estimateSummedImpactMatrix(int sampleSize) {
+        return estimateWithStandardError(sampleSize).estimate;
+    }
+    
+    
+    /**
+     * Estimates the summed impact matrix like {@link QuickSampler#estimateSummedImpactMatrix(int)}
+     * together with the standard error of the estimate of each variable pair.
+     * The standard error combines the sample variances of the sampled strata of the pair;
+     * the computed strata add nothing to it.
+     * A pair is reported as unresolved (see {@link SampledEstimate#isUnresolved(int, int)})
+     * if the sample of any of its strata of several chains has no variance.
+     * With shared permutations, the variance of the summed estimates of all lengths is used,
+     * so the covariances of the strata sampled from the same permutations are included.
+     * @param sampleSize Size of the drawn sample of chains of a specific length
+     * @return SampledEstimate : summed impact matrix and its standard errors
+     */
+    @Override
+    public SampledEstimate estimateWithStandardError(int sampleSize) {
         assert sampleSize > 0 : "SampleSize must be greater than 0";
-        CrossImpactMatrix summedImpactMatrix = new CrossImpactMatrix(new SquareMatrix(matrix).copy().copyWithoutValues());
+        if(timeBudget > 0) {
+            long start = System.nanoTime();
+            deadline = start + timeBudget * 1000000L;
+            nextSnapshot = start + snapshotInterval * 1000000L;
+        }
+
+        int varCount = matrix.getVarCount();
+        int computedLength = getComputedLength();
+        double[][] closedFormImpacts = closedFormImpacts();
         
         report("Estimating summed impacts...");
-        for(int impactor = 1; impactor <= matrix.getVarCount(); impactor++) {
-            for(int impacted = 1; impacted <= matrix.getVarCount(); impacted++) {
+        double[][] computedImpacts = new double[varCount+1][];
+        /* The enumeration walks through the chains computed with matrix products to reach the longer ones
+           and sums them too, at the cost of one addition per chain; those sums are not used */
+        if(computedLength > closedFormImpacts.length-1) {
+            for(int impactor = 1; impactor <= varCount; impactor++) {
+                reportf("Computing impact of chains of length %d or shorter from %s%n", computedLength, matrix.getNameShort(impactor));
+                computedImpacts[impactor] = computeAllFrom(impactor, computedLength);
+            }
+        }
+        
+        int sampledFrom = computedLength + 1;
+        List<SampleTask> tasks = new ArrayList<>();
+        if(sampledFrom <= varCount) {
+            reportf("Sampling chains of length %d-%d with %d threads%n", sampledFrom, varCount, getParallelism());
+            for(int impactor = 1; impactor <= varCount; impactor++) {
+                for(int impacted = 1; impacted <= varCount; impacted++) {
+                    if(impactor == impacted) continue;
+                    if(sharedPermutations) {
+                        tasks.add(new SampleTask(impactor, impacted, sampledFrom, varCount, sampleSize, stratumRandom(impactor, impacted, 0)));
+                    } else for(int length = sampledFrom; length <= varCount; length++) {
+                        tasks.add(new SampleTask(impactor, impacted, length, length, sampleSize, stratumRandom(impactor, impacted, length)));
+                    }
+                }
+            }
+            runTasks(tasks);
+        }
+        
+        List<StrataSample> samples = new ArrayList<>(tasks.size());
+        for(SampleTask task : tasks) samples.add(task.join());
+        if(timeBudget > 0 && !tasks.isEmpty()) sampleUntilDeadline(tasks, samples, closedFormImpacts, computedImpacts);
+        else if(sampleBudget > 0 && !tasks.isEmpty()) allocateBudget(tasks, samples);
+
+        return combineEstimate(tasks, samples, closedFormImpacts, computedImpacts);
+    }
+
+
+    /**
+     * Combines the computed summed impacts and the statistics of the sampled strata
+     * into the estimate of the summed impact matrix and its standard errors.
+     * @param tasks Sampling tasks
+     * @param samples Statistics of the sample of each task
+     * @param closedFormImpacts Summed impacts of the shortest chains computed with matrix products
+     * @param computedImpacts Exactly computed summed impacts of the short chains from each impactor
+     * @return SampledEstimate : summed impact matrix and its standard errors
+     */
+    private SampledEstimate combineEstimate(List<SampleTask> tasks, List<StrataSample> samples, double[][] closedFormImpacts, double[][] computedImpacts) {
+        int varCount = matrix.getVarCount();
+        CrossImpactMatrix summedImpactMatrix = new CrossImpactMatrix(new SquareMatrix(matrix).copy().copyWithoutValues());
+        CrossImpactMatrix standardErrorMatrix = new CrossImpactMatrix(summedImpactMatrix.copyWithoutValues());
+        double[] summedImpacts = new double[varCount*varCount];
+        double[] variances = new double[varCount*varCount];
+        boolean[] unresolved = new boolean[varCount*varCount];
+        sampledChainCount = 0;
+        drawCount = 0;
+        for(int t=0;t<tasks.size();t++) {
+            SampleTask task = tasks.get(t);
+            int cell = (task.impactorIndex-1)*varCount + task.impactedIndex-1;
+            RunningStatistics[] strata = samples.get(t).strata;
+            for(int k=0;k<strata.length;k++) {
+                RunningStatistics sample = strata[k];
+                summedImpacts[cell] += sample.mean();
+                sampledChainCount += sample.getCount();
+                if(sample.variance() == 0 && EXITImpactMatrix.chainCount_intermediary(varCount, task.minLength + k - 2) > 1) unresolved[cell] = true;
+            }
+            variances[cell] += samples.get(t).varianceOfMean();
+            drawCount += samples.get(t).total.getCount();
+        }
+        for(int impactor = 1; impactor <= varCount; impactor++) {
+            for(int impacted = 1; impacted <= varCount; impacted++) {
                 if(impactor != impacted) {
-                    //report(String.format("Estimating impact of %s on %s", matrix.getNameShort(impactor), matrix.getNameShort(impacted)));
-                    reportf("Estimating impact of %s on %s...%n", matrix.getNameShort(impactor), matrix.getNameShort(impacted));
-                    summedImpactMatrix.setValue(impactor, impacted, computeOrSampleSummedImpact(impactor, impacted, sampleSize));
+                    double summedImpact = summedImpacts[(impactor-1)*varCount + impacted-1]
+                            + computedSummedImpact(impactor, impacted, closedFormImpacts, computedImpacts[impactor]);
+                    summedImpactMatrix.setValue(impactor, impacted, summedImpact);
+                    standardErrorMatrix.setValue(impactor, impacted, Math.sqrt(variances[(impactor-1)*varCount + impacted-1]));
                 }
             }
         }
-        return summedImpactMatrix;
+        return new SampledEstimate(summedImpactMatrix, standardErrorMatrix, sampledChainCount, unresolved);
+    }
+
+
+    /**
+     * Draws more rounds of samples of the strata of <b>tasks</b>,
+     * each round as large as the first one, until the time budget runs out,
+     * and adds them to <b>samples</b>.
+     * Each task continues its own random number stream, so seeded estimates
+     * depend on the number of rounds but not on the number of threads.
+     * If the sampling is adaptive, tasks whose strata are all within the tolerance are not sampled again.
+     * A round is also stopped when the snapshot interval has passed since the previous intermediate estimate,
+     * and the intermediate estimate is then given to the snapshot consumer before the next round.
+     * @param tasks Sampling tasks that drew the first round
+     * @param samples Statistics of the sample of each task, to which the later rounds are added
+     * @param closedFormImpacts Summed impacts of the shortest chains computed with matrix products
+     * @param computedImpacts Exactly computed summed impacts of the short chains from each impactor
+     */
+    private void sampleUntilDeadline(List<SampleTask> tasks, List<StrataSample> samples, double[][] closedFormImpacts, double[][] computedImpacts) {
+        final long intervalNanos = snapshotInterval * 1000000L;
+        int rounds = 1;
+        while(true) {
+            if(snapshotConsumer != null && System.nanoTime() - nextSnapshot >= 0) {
+                snapshotConsumer.accept(combineEstimate(tasks, samples, closedFormImpacts, computedImpacts));
+                nextSnapshot = System.nanoTime() + intervalNanos;
+            }
+            if(isPastDeadline()) break;
+
+            List<SampleTask> round = new ArrayList<>();
+            List<Integer> roundIndices = new ArrayList<>();
+            for(int t=0;t<tasks.size();t++) {
+                if(isAdaptive() && samples.get(t).total.getCount() >= MIN_ADAPTIVE_SAMPLE && isWithinTolerance(samples.get(t))) continue;
+                SampleTask first = tasks.get(t);
+                round.add(new SampleTask(first.impactorIndex, first.impactedIndex, first.minLength, first.maxLength, first.sampleSize, first.random));
+                roundIndices.add(t);
+            }
+            if(round.isEmpty()) {
+                report("All sampled estimates are within the tolerance");
+                break;
+            }
+            runTasks(round);
+            for(int r=0;r<round.size();r++) {
+                samples.get(roundIndices.get(r)).merge(round.get(r).join());
+            }
+            rounds++;
+        }
+        reportf("Sampled %d rounds within the time budget of %d ms%n", rounds, timeBudget);
+    }
+
+
+    /**
+     * @return <i>true</i> if the time budget of the current estimation has run out
+     */
+    private boolean isPastDeadline() {
+        return timeBudget > 0 && System.nanoTime() - deadline >= 0;
+    }
+
+
+    /**
+     * @return <i>true</i> if the sampling round in progress should stop
+     * because the time budget has run out or an intermediate estimate is due
+     */
+    private boolean isRoundOver() {
+        if(timeBudget == 0) return false;
+        long now = System.nanoTime();
+        return now - deadline >= 0 || (snapshotConsumer != null && now - nextSnapshot >= 0);
+    }
+
+
+    /**
+     * Draws the second phase of a sample whose first phase was a pilot sample of the same size in every stratum,
+     * using the rest of the sample budget, and adds it to the pilot samples.
+     * A share of {@link QuickSampler#EQUAL_ALLOCATION_SHARE} of the remaining budget is split equally among the sampling tasks,
+     * and the rest in proportion to the standard deviation of the summed impact estimates in their pilot samples
+     * (Neyman allocation).
+     * The standard deviation of the estimates already includes the number of chains in the stratum,
+     * so strata with many chains and much variance get the greatest samples.
+     * The split is a deliberate compromise and not variance-optimal.
+     * Neyman allocation alone would minimize the summed variance if the pilot standard deviations were exact,
+     * but it gives no draws to the strata whose pilot samples had no variance:
+     * in sparse matrices, a pilot sample often draws only chains with no impact
+     * from a stratum that has a few chains with an impact,
+     * and without more draws its estimate would stay 0.
+     * The equal share keeps sampling those strata
+     * and limits the harm of pilot standard deviations that are underestimated by chance.
+     * With shared permutations, a task samples several strata with each draw,
+     * and its share is in proportion to the standard deviation of the summed estimates of its strata.
+     * @param tasks Sampling tasks that drew the pilot samples
+     * @param samples Statistics of the pilot samples of each task, 
+     * to which the statistics of the second phase are added
+     */
+    private void allocateBudget(List<SampleTask> tasks, List<StrataSample> samples) {
+        long pilotDraws = 0;
+        double[] deviations = new double[tasks.size()];
+        double totalDeviation = 0;
+        for(int t=0;t<tasks.size();t++) {
+            pilotDraws += samples.get(t).total.getCount();
+            deviations[t] = Math.sqrt(samples.get(t).total.variance());
+            totalDeviation += deviations[t];
+        }
+        
+        long remaining = sampleBudget - pilotDraws;
+        if(remaining <= 0) {
+            reportf("No sample budget left for allocation after the pilot sample of %d draws%n", pilotDraws);
+            return;
+        }
+        
+        double equalShare = totalDeviation == 0 ? 1 : EQUAL_ALLOCATION_SHARE;
+        reportf("Allocating %d draws, %.0f%% equally and the rest in proportion to the standard deviations of the pilot samples%n", 
+                remaining, equalShare * 100);
+        List<SampleTask> allocated = new ArrayList<>();
+        List<Integer> allocatedIndices = new ArrayList<>();
+        for(int t=0;t<tasks.size();t++) {
+            double share = equalShare / tasks.size() + (totalDeviation == 0 ? 0 : (1 - equalShare) * deviations[t] / totalDeviation);
+            long draws = (long)(remaining * share);
+            if(draws == 0) continue;
+            SampleTask pilot = tasks.get(t);
+            allocated.add(new SampleTask(pilot.impactorIndex, pilot.impactedIndex, pilot.minLength, pilot.maxLength, 
+                    (int)Math.min(draws, Integer.MAX_VALUE), pilot.random));
+            allocatedIndices.add(t);
+        }
+        runTasks(allocated);
+        
+        for(int a=0;a<allocated.size();a++) {
+            samples.get(allocatedIndices.get(a)).merge(allocated.get(a).join());
+        }
+    }
+    
+    
+    /**
+     * Computes the summed impacts of the shortest chains 
+     * (up to length {@link MatrixPowerComputer#MAX_LENGTH}) for all variable pairs
+     * with matrix algebra, so that these chains need not be enumerated or sampled.
+     * @return double[][] : summed impacts of chains of length <i>l</i> 
+     * in <tt>[l][(impactor-1) * varCount + (impacted-1)]</tt>
+     */
+    private double[][] closedFormImpacts() {
+        int maxLength = Math.min(MatrixPowerComputer.MAX_LENGTH, matrix.getVarCount());
+        MatrixPowerComputer computer = new MatrixPowerComputer(matrix);
+        double[][] impacts = new double[maxLength+1][];
+        for(int length=2;length<=maxLength;length++) {
+            reportf("Computing impact of chains of length %d with matrix products%n", length);
+            impacts[length] = computer.summedImpacts(length);
+        }
+        return impacts;
     }
     
     
     /**
-     * Returns an estimate of the 
-     * summed impact of variable with index <b>impactorIndex</b> on
-     * variable with index <b>impactedIndex</b>.
-     * For short chains, the impacts are computed exactly. 
-     * For longer chains, the impacts are estimated, based on a stratified sampling strategy.
+     * Returns the summed impact of the chains 
+     * from variable with index <b>impactorIndex</b> to
+     * variable with index <b>impactedIndex</b>
+     * whose length is {@link QuickSampler#getComputedLength()} or shorter.
+     * The chains up to length {@link MatrixPowerComputer#MAX_LENGTH} are taken from <b>closedFormImpacts</b>
+     * and the longer ones from <b>computedImpacts</b>,
+     * whose sums of the shortest chains are the same and are not used.
      * @param impactorIndex Index of impactor variable
      * @param impactedIndex Index of impacted variable
-     * @param sampleSize Size of sample in sampling
-     * @return double : summed (total) impact of impactor on impacted
+     * @param closedFormImpacts Summed impacts of the shortest chains computed with matrix products
+     * @param computedImpacts Exactly computed summed impacts of the short chains starting from the impactor, 
+     * as returned by {@link Sampler#computeAllFrom(int, int)}
+     * @return double : summed impact of the computed chains from impactor to impacted
      */
-    double computeOrSampleSummedImpact(int impactorIndex, int impactedIndex, int sampleSize) {
+    double computedSummedImpact(int impactorIndex, int impactedIndex, double[][] closedFormImpacts, double[] computedImpacts) {
         double summedImpact = 0;
-        for(int length=2;length<=matrix.getVarCount();length++) {
-            
-            if (length <= computeUpToLength) {
-                reportf("\tComputing impact of chains of length %d%n", length);
-                summedImpact += computeAll(impactorIndex, impactedIndex, length);
+        int maxLength = getComputedLength();
+        for(int length=2;length<=maxLength;length++) {
+            if (length < closedFormImpacts.length) {
+                summedImpact += closedFormImpacts[length][(impactorIndex-1)*matrix.getVarCount() + impactedIndex-1];
             } else {
-                reportf("\tEstimating impact chains of length %d from a sample%n", length);
-                summedImpact += estimateSummedImpact(impactorIndex, impactedIndex, length, sampleSize);
+                summedImpact += computedImpacts[length*matrix.getVarCount() + impactedIndex-1];
             }
         }
-        reportf("%n");
         return summedImpact;        
     }
     
@@ -154,7 +620,8 @@ public class QuickSampler extends Sampler {
      * where first variable (impactor) has index <b>impactorIndex</b> and 
      * last variable (impacted) has index <b>impactedIndex</b>.
      * Estimate is based on a sample of size <b>sampleSize</b>,
-     * drawn from possible impact chains meeting the specifications, with replacement.
+     * drawn from possible impact chains meeting the specifications, with replacement,
+     * with the random number stream of the stratum (see {@link Sampler#stratumRandom(int, int, int)}).
      * @param impactorIndex Variable index of impactor
      * @param impactedIndex Variable index of impacted
      * @param chainLength Length of sampled chains
@@ -162,25 +629,168 @@ public class QuickSampler extends Sampler {
      * @return double : summed impact of chains of length <b>chainLength</b> between impactor and impacted
      */
     double estimateSummedImpact(int impactorIndex, int impactedIndex, int chainLength, int sampleSize) {
+        return estimateSummedImpact(impactorIndex, impactedIndex, chainLength, sampleSize, stratumRandom(impactorIndex, impactedIndex, chainLength));
+    }
+    
+    
+    /**
+     * Like {@link QuickSampler#estimateSummedImpact(int, int, int, int)},
+     * but the sample is drawn with <b>random</b>.
+     * @param impactorIndex Variable index of impactor
+     * @param impactedIndex Variable index of impacted
+     * @param chainLength Length of sampled chains
+     * @param sampleSize Size of sample
+     * @param random Source of randomness
+     * @return double : summed impact of chains of length <b>chainLength</b> between impactor and impacted
+     */
+    double estimateSummedImpact(int impactorIndex, int impactedIndex, int chainLength, int sampleSize, SplittableRandom random) {
         assert sampleSize > 0 : "Sample size 0 or smaller";
         assert chainLength > 1 : "Chain length must be greater than 1";
         
         /* Chains with length 2 need not be sampled */
         if (chainLength == 2) {
-            return matrix.getValue(impactorIndex, impactedIndex)/matrix.getMaxImpact();
+            return frozen.impact(impactorIndex-1, impactedIndex-1);
         }
         
-        int i=0;
-        double mean=0;
-        while(sampleSize-- > 0) {
-            double rndImpact = impactOfChain(randomIndices(impactorIndex, impactedIndex, chainLength));
-            mean = (rndImpact + mean * i) / (i+1);
-            i++;
+        return sampleStratum(impactorIndex, impactedIndex, chainLength, sampleSize, random).mean();
+    }
+    
+    
+    /**
+     * Draws a sample of chains of length <b>chainLength</b>
+     * from <b>impactorIndex</b> to <b>impactedIndex</b> with <b>random</b>
+     * and returns the statistics of the estimates of the summed impact of the stratum
+     * given by each sampled chain:
+     * the relative impact of the chain divided by its probability of being drawn.
+     * With uniform sampling, the estimate of a chain is its relative impact times the number of chains in the stratum;
+     * with importance sampling, the chains are drawn with {@link WeightedChainGenerator}.
+     * The sample has <b>sampleSize</b> chains,
+     * or fewer if the sampling is adaptive and the estimate of the stratum is within the tolerance,
+     * or if the round of sampling with a time budget is over.
+     * @param impactorIndex Variable index of impactor
+     * @param impactedIndex Variable index of impacted
+     * @param chainLength Length of sampled chains, at least 3
+     * @param sampleSize Greatest size of sample
+     * @param random Source of randomness
+     * @return RunningStatistics : statistics of the summed impact estimates of the sampled chains
+     */
+    RunningStatistics sampleStratum(int impactorIndex, int impactedIndex, int chainLength, int sampleSize, SplittableRandom random) {
+        assert chainLength > 2 && sampleSize > 0;
+        if(isExactLastHop()) return sampleStrata(impactorIndex, impactedIndex, chainLength, chainLength, sampleSize, random).total;
+        
+        RandomChainGenerator generator = importanceSampling ? null : chainGenerator();
+        WeightedChainGenerator weightedGenerator = importanceSampling ? weightedGenerators.get() : null;
+        RunningStatistics sample = new RunningStatistics();
+        /* With a time budget, the tolerance is checked between the rounds */
+        boolean adaptive = isAdaptive() && timeBudget == 0;
+        double chainCount = chainCount(chainLength);
+        for(int i=1;i<=sampleSize;i++) {
+            sample.add(importanceSampling
+                    ? weightedGenerator.randomChainEstimate(impactorIndex, impactedIndex, chainLength, random)
+                    : generator.randomChainImpact(impactorIndex, impactedIndex, chainLength, random) * chainCount);
+            if(i % ADAPTIVE_CHECK_INTERVAL == 0) {
+                if(isRoundOver()) break;
+                if(adaptive && i >= MIN_ADAPTIVE_SAMPLE && isWithinTolerance(sample)) break;
+            }
         }
+        return sample;
+    }
+    
+    
+    /**
+     * Samples the chains of every length from <b>minLength</b> to <b>maxLength</b>
+     * from <b>impactorIndex</b> to <b>impactedIndex</b> at once with <b>random</b>,
+     * drawing one random order of intermediaries per sample
+     * and using each of its prefixes as the sampled chain of the prefix length
+     * (see {@link RandomChainGenerator#randomPrefixImpacts(int, int, int, int, java.util.SplittableRandom, double[])}).
+     * Each stratum gets a sample of the same size as from 
+     * {@link QuickSampler#sampleStratum(int, int, int, int, java.util.SplittableRandom)},
+     * but for about the cost of sampling the longest chains only.
+     * The samples of different lengths are not independent of each other,
+     * but the estimate of each stratum is unbiased.
+     * Adaptive sampling stops when the estimates of all strata are within the tolerance.
+     * If the last hop is summed exactly (see {@link Sampler#setExactLastHop(boolean)}),
+     * the prefixes are one intermediary shorter and each stands for the summed impact of its continuations.
+     * @param impactorIndex Variable index of impactor
+     * @param impactedIndex Variable index of impacted
+     * @param minLength Length of the shortest sampled chains, at least 3
+     * @param maxLength Length of the longest sampled chains
+     * @param sampleSize Greatest size of sample
+     * @param random Source of randomness
+     * @return StrataSample : statistics of the summed impact estimates 
+     * of the sampled chains of length <i>l</i> at index <i>l</i> - <b>minLength</b>,
+     * and of their sums over the lengths
+     */
+    StrataSample sampleStrata(int impactorIndex, int impactedIndex, int minLength, int maxLength, int sampleSize, SplittableRandom random) {
+        assert minLength > 2 && minLength <= maxLength && sampleSize > 0;
         
-        double chainCount = EXITImpactMatrix.chainCount_intermediary(matrix.getVarCount(), chainLength-2);
+        RandomChainGenerator generator = importanceSampling ? null : chainGenerator();
+        WeightedChainGenerator weightedGenerator = importanceSampling ? weightedGenerators.get() : null;
+        final int lengthCount = maxLength - minLength + 1;
+        RunningStatistics[] samples = new RunningStatistics[lengthCount];
+        double[] chainCounts = new double[lengthCount];
+        boolean sumLastHop = isExactLastHop();
+        for(int k=0;k<lengthCount;k++) {
+            samples[k] = new RunningStatistics();
+            chainCounts[k] = chainCount(sumLastHop ? minLength + k - 1 : minLength + k);
+        }
         
-        return mean * chainCount;
+        /* The statistics of a single stratum are also its total */
+        RunningStatistics total = lengthCount > 1 ? new RunningStatistics() : samples[0];
+        double[] estimates = new double[lengthCount];
+        /* With a time budget, the tolerance is checked between the rounds */
+        boolean adaptive = isAdaptive() && timeBudget == 0;
+        for(int i=1;i<=sampleSize;i++) {
+            if(importanceSampling) {
+                weightedGenerator.randomPrefixEstimates(impactorIndex, impactedIndex, minLength, maxLength, sumLastHop, random, estimates);
+            } else {
+                generator.randomPrefixImpacts(impactorIndex, impactedIndex, minLength, maxLength, sumLastHop, random, estimates);
+                for(int k=0;k<lengthCount;k++) estimates[k] *= chainCounts[k];
+            }
+            double sum = 0;
+            for(int k=0;k<lengthCount;k++) {
+                samples[k].add(estimates[k]);
+                sum += estimates[k];
+            }
+            if(lengthCount > 1) total.add(sum);
+            if(i % ADAPTIVE_CHECK_INTERVAL == 0) {
+                if(isRoundOver()) break;
+                if(adaptive && i >= MIN_ADAPTIVE_SAMPLE && isWithinTolerance(new StrataSample(samples, total))) break;
+            }
+        }
+        return new StrataSample(samples, total);
+    }
+    
+    
+    /**
+     * @param sample Statistics of the summed impact estimates of a stratum
+     * @return <i>true</i> if the half-width of the confidence interval of the estimate is within the tolerance
+     */
+    private boolean isWithinTolerance(RunningStatistics sample) {
+        double halfWidth = CONFIDENCE_Z * sample.standardError();
+        double tolerance = Math.max(absoluteTolerance, relativeTolerance * Math.abs(sample.mean()));
+        return halfWidth <= tolerance;
+    }
+    
+    
+    /**
+     * @param sample Statistics of the summed impact estimates of the strata of a sampling task
+     * @return <i>true</i> if the estimates of all the strata are within the tolerance
+     */
+    private boolean isWithinTolerance(StrataSample sample) {
+        for(RunningStatistics stratum : sample.strata) {
+            if(!isWithinTolerance(stratum)) return false;
+        }
+        return true;
+    }
+    
+    
+    /**
+     * @param chainLength Length of chains
+     * @return double : number of chains of length <b>chainLength</b> between two variables of <b>matrix</b>
+     */
+    private double chainCount(int chainLength) {
+        return EXITImpactMatrix.chainCount_intermediary(matrix.getVarCount(), chainLength-2);
     }
     
     
@@ -192,12 +802,7 @@ public class QuickSampler extends Sampler {
      */
     double impactOfChain(int[] indices) {
         assert indices.length > 1 : "Chain length must be greater than 1";
-        double impact = 1;
-        double max = matrix.getMaxImpact();
-        for(int i=0;i<indices.length-1;i++) {
-            impact *= matrix.getValue(indices[i],indices[i+1]) / max;
-        }
-        return impact;
+        return frozen.chainImpact(indices, indices.length);
     }
     
     
@@ -210,15 +815,85 @@ public class QuickSampler extends Sampler {
     double impactOfChain(List<Integer> indices) {
         assert indices.size() > 1 : "Chain length must be greater than 1";
         double impact = 1;
-        double max = matrix.getMaxImpact();
         Iterator<Integer> it1 = indices.iterator();
         Iterator<Integer> it2 = indices.iterator(); it2.next();
         while(it1.hasNext() && it2.hasNext()) {
-            impact *= matrix.getValue(it1.next(), it2.next()) / max;
+            impact *= frozen.impact(it1.next()-1, it2.next()-1);
         }
         return impact;
     }
     
     
+    /**
+     * Statistics of the sample drawn by one sampling task:
+     * the summed impact estimates of each sampled stratum,
+     * and the sums of the estimates of all the strata given by each draw.
+     * The variance of the sums includes the covariances of strata 
+     * sampled with shared permutations.
+     * If the task sampled one stratum, the statistics of the stratum are also the statistics of the sums.
+     */
+    static final class StrataSample {
+        
+        final RunningStatistics[] strata;
+        final RunningStatistics total;
+        
+        StrataSample(RunningStatistics[] strata, RunningStatistics total) {
+            this.strata = strata;
+            this.total = total;
+        }
+        
+        /**
+         * Adds the statistics of <b>other</b>, a sample of the same strata, to these statistics.
+         * @param other Statistics of a sample of the same strata
+         */
+        void merge(StrataSample other) {
+            for(int k=0;k<strata.length;k++) strata[k].merge(other.strata[k]);
+            if(total != strata[0]) total.merge(other.total);
+        }
+        
+        /**
+         * @return Variance of the summed estimate of the strata
+         */
+        double varianceOfMean() {
+            double standardError = total.standardError();
+            return standardError * standardError;
+        }
+    }
+    
+    
+    /**
+     * Fork/join task that samples the strata of the chains 
+     * of lengths <b>minLength</b>..<b>maxLength</b> between an impactor and an impacted variable:
+     * one stratum, or all lengths at once with shared permutations.
+     */
+    private class SampleTask extends RecursiveTask<StrataSample> {
+        
+        final int impactorIndex;
+        final int impactedIndex;
+        final int minLength;
+        final int maxLength;
+        final int sampleSize;
+        /** Random number stream of this task */
+        final SplittableRandom random;
+        
+        SampleTask(int impactorIndex, int impactedIndex, int minLength, int maxLength, int sampleSize, SplittableRandom random) {
+            this.impactorIndex = impactorIndex;
+            this.impactedIndex = impactedIndex;
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.sampleSize = sampleSize;
+            this.random = random;
+        }
+        
+        @Override
+        protected StrataSample compute() {
+            if(minLength == maxLength) {
+                RunningStatistics sample = sampleStratum(impactorIndex, impactedIndex, minLength, sampleSize, random);
+                return new StrataSample(new RunningStatistics[] {sample}, sample);
+            }
+            return sampleStrata(impactorIndex, impactedIndex, minLength, maxLength, sampleSize, random);
+        }
+    }
+    
     
 }
@@ -0,0 +1,78 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.estimators;
+
+/**
+ * <tt>RunningStatistics</tt> keeps the count, mean and variance of a sample
+ * as its values are added one at a time, without storing the values.
+ * The mean and the sum of squared differences from the mean are updated
+ * with Welford's method, which stays accurate also when the variance is
+ * small compared to the mean.
+ * @author jmpaon
+ */
+public class RunningStatistics {
+
+    private long count;
+    private double mean;
+    /** Sum of squared differences from the current mean */
+    private double m2;
+
+
+    /**
+     * Adds <b>value</b> to the sample.
+     * @param value Sampled value
+     */
+    public void add(double value) {
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+    }
+
+    /**
+     * Adds the values of another sample to this sample.
+     * The statistics are combined with the pairwise formula of Chan et al.,
+     * giving the same result as adding the values one at a time up to rounding.
+     * @param other Statistics of the other sample
+     */
+    public void merge(RunningStatistics other) {
+        if(other.count == 0) return;
+        long combined = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / combined;
+        m2 += other.m2 + delta * delta * ((double)count * other.count / combined);
+        count = combined;
+    }
+
+    /**
+     * @return Number of values in the sample
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean of the sample, 0 if the sample is empty
+     */
+    public double mean() {
+        return mean;
+    }
+
+    /**
+     * @return Unbiased variance of the sample, 0 if the sample has less than 2 values
+     */
+    public double variance() {
+        return count > 1 ? m2 / (count - 1) : 0;
+    }
+
+    /**
+     * @return Standard error of the sample mean, 0 if the sample has less than 2 values
+     */
+    public double standardError() {
+        return count > 1 ? Math.sqrt(variance() / count) : 0;
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.estimators;
+
+import exit.matrices.CrossImpactMatrix;
+
+/**
+ * Summed impact matrix estimated by sampling,
+ * together with the standard error of the estimate in each cell.
+ * The standard error is 0 in cells where all chains were computed exactly,
+ * but also in cells where all chains sampled from a set of chains had the same impact,
+ * typically no impact in a sparse matrix, although the set may have chains with other impacts.
+ * The standard error of such <i>unresolved</i> cells is not reliable,
+ * and they are reported by {@link SampledEstimate#isUnresolved(int, int)}.
+ * @author jmpaon
+ */
+public class SampledEstimate {
+    
+    /** Estimated summed impacts */
+    public final CrossImpactMatrix estimate;
+    
+    /** Standard error of the estimated summed impact between each impactor and impacted variable */
+    public final CrossImpactMatrix standardError;
+    
+    /** Number of chains drawn for the estimate */
+    public final long sampledChainCount;
+    
+    /** 
+     * Unresolved cells at <tt>(impactor-1) * varCount + (impacted-1)</tt>:
+     * a set of several chains was sampled for the cell and all sampled chains had the same impact
+     */
+    private final boolean[] unresolved;
+    
+    public SampledEstimate(CrossImpactMatrix estimate, CrossImpactMatrix standardError, long sampledChainCount) {
+        this(estimate, standardError, sampledChainCount, new boolean[estimate.getVarCount()*estimate.getVarCount()]);
+    }
+    
+    /**
+     * @param estimate Estimated summed impacts
+     * @param standardError Standard errors of the estimates
+     * @param sampledChainCount Number of chains drawn for the estimate
+     * @param unresolved Unresolved cells at <tt>(impactor-1) * varCount + (impacted-1)</tt>
+     */
+    public SampledEstimate(CrossImpactMatrix estimate, CrossImpactMatrix standardError, long sampledChainCount, boolean[] unresolved) {
+        assert estimate != null && standardError != null;
+        assert estimate.getVarCount() == standardError.getVarCount();
+        assert unresolved.length == estimate.getVarCount()*estimate.getVarCount();
+        this.estimate = estimate;
+        this.standardError = standardError;
+        this.sampledChainCount = sampledChainCount;
+        this.unresolved = unresolved.clone();
+    }
+    
+    /**
+     * Tells whether the estimate of a cell includes a sampled set of several chains
+     * whose sampled chains all had the same impact.
+     * The sample then shows no variance, and the standard error of the cell does not include
+     * the error of the set, which may have chains with other impacts that were not drawn.
+     * @param impactor Index of impactor variable
+     * @param impacted Index of impacted variable
+     * @return <i>true</i> if the standard error of the cell is not reliable
+     */
+    public boolean isUnresolved(int impactor, int impacted) {
+        return unresolved[(impactor-1)*estimate.getVarCount() + impacted-1];
+    }
+    
+    /**
+     * @return Number of unresolved cells (see {@link SampledEstimate#isUnresolved(int, int)})
+     */
+    public int unresolvedCount() {
+        int count = 0;
+        for(boolean u : unresolved) if(u) count++;
+        return count;
+    }
+    
+    /**
+     * Creates a table of flags of the unresolved cells, 1 for unresolved and 0 for other cells,
+     * in the shape of the estimate (see {@link SampledEstimate#isUnresolved(int, int)}).
+     * @return CrossImpactMatrix : 1 in the unresolved cells
+     */
+    public CrossImpactMatrix unresolvedCells() {
+        CrossImpactMatrix flags = new CrossImpactMatrix(estimate.copyWithoutValues());
+        for(int impactor=1;impactor<=estimate.getVarCount();impactor++) {
+            for(int impacted=1;impacted<=estimate.getVarCount();impacted++) {
+                if(impactor != impacted && isUnresolved(impactor, impacted)) flags.setValue(impactor, impacted, 1);
+            }
+        }
+        return flags;
+    }
+    
+    /**
+     * Returns the lower bounds of the confidence intervals of the estimates,
+     * <b>z</b> standard errors below the estimates.
+     * @param z Normal quantile of the confidence level, e.g. 1.96 for 95%
+     * @return CrossImpactMatrix : lower confidence bounds
+     */
+    public CrossImpactMatrix lowerBound(double z) {
+        return bound(-z);
+    }
+    
+    /**
+     * Returns the upper bounds of the confidence intervals of the estimates,
+     * <b>z</b> standard errors above the estimates.
+     * @param z Normal quantile of the confidence level, e.g. 1.96 for 95%
+     * @return CrossImpactMatrix : upper confidence bounds
+     */
+    public CrossImpactMatrix upperBound(double z) {
+        return bound(z);
+    }
+    
+    private CrossImpactMatrix bound(double z) {
+        CrossImpactMatrix bound = new CrossImpactMatrix(estimate.copyWithoutValues());
+        for(int impactor=1;impactor<=estimate.getVarCount();impactor++) {
+            for(int impacted=1;impacted<=estimate.getVarCount();impacted++) {
+                if(impactor == impacted) continue;
+                bound.setValue(impactor, impacted, estimate.getValue(impactor, impacted) + z * standardError.getValue(impactor, impacted));
+            }
+        }
+        return bound;
+    }
+    
+    /**
+     * @return The greatest standard error of any cell of the estimate
+     */
+    public double maxStandardError() {
+        return standardError.matrixMax(true);
+    }
+    
+}
@@ -5,13 +5,18 @@
  */
 package exit.estimators;
 
+import exit.matrices.ChainEnumerator;
 import exit.matrices.CrossImpactMatrix;
 import exit.matrices.EXITImpactMatrix;
-import exit.matrices.ImpactChain;
+import exit.matrices.FrozenImpactMatrix;
+import exit.matrices.RandomChainGenerator;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * A <tt>Sampler</tt> estimates the total (summed direct and indirect impacts)
@@ -30,6 +35,20 @@ public abstract class Sampler {
     public final EXITImpactMatrix matrix;
     public final PrintStream reportingStream;
     
+    /** Relative impacts of <b>matrix</b> when the sampler was created, shared by the sampling threads */
+    protected final FrozenImpactMatrix frozen;
+    /** Enumerator for the full computation of chains in <b>matrix</b>, copied for each computation as it is not thread-safe */
+    private final ChainEnumerator enumerator;
+    /** Random chain generator of each sampling thread */
+    private final ThreadLocal<RandomChainGenerator> chainGenerators;
+    
+    /** Runner of the computation and sampling tasks; 1 thread means single-threaded computation */
+    private final TaskRunner runner = new TaskRunner();
+    /** Seed of the random number streams of the strata; <i>null</i> if the streams are not seeded */
+    private Long seed;
+    /** Is the last intermediary of sampled chains summed over instead of drawn */
+    private boolean exactLastHop = false;
+    
     
     /**
      * Constructor
@@ -44,6 +63,10 @@ public abstract class Sampler {
         assert matrix != null;
         this.matrix = matrix;
         this.reportingStream = reportingStream;        
+        this.frozen = matrix.freeze();
+        this.enumerator = new ChainEnumerator(frozen);
+        RandomChainGenerator generator = new RandomChainGenerator(frozen);
+        this.chainGenerators = ThreadLocal.withInitial(generator::copy);
     }
 
     /**
@@ -63,6 +86,103 @@ public abstract class Sampler {
     }
     
     
+    /**
+     * Sets the number of threads used by the sampler.
+     * The full computation of impact chains
+     * is split into fork/join tasks by variable pair and by first intermediary variable,
+     * and the sampling into tasks by sampled set of chains;
+     * the tasks are run by <b>parallelism</b> threads.
+     * @param parallelism Number of threads, must be at least 1
+     */
+    public void setParallelism(int parallelism) {
+        runner.setParallelism(parallelism);
+    }
+    
+    /**
+     * @return The number of threads used by the sampler
+     */
+    public int getParallelism() {
+        return runner.getParallelism();
+    }
+    
+    /**
+     * Sets the seed from which the random number stream of each sampled stratum is derived.
+     * With a seed, the stream of a stratum depends only on the seed
+     * and the impactor, impacted and chain length of the stratum,
+     * so the estimates are the same from run to run
+     * regardless of the number of threads and the order the strata are sampled in.
+     * @param seed Seed
+     * @see Sampler#stratumRandom(int, int, int)
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    /**
+     * @return The seed of the sampler, <i>null</i> if the sampler is not seeded
+     */
+    public Long getSeed() {
+        return seed;
+    }
+    
+    /**
+     * Sets whether the last intermediary variable of the sampled chains is summed over exactly.
+     * If set, only the chain up to the second to last intermediary is drawn,
+     * and each sampled chain is replaced by the summed impact of all chains 
+     * that continue it with any of the remaining variables as the last intermediary.
+     * This is the conditional expectation of the sampled value given the drawn part of the chain
+     * (Rao-Blackwellization), so the estimates remain unbiased and have less variance,
+     * at a cost of O(n) per sampled chain.
+     * @param exactLastHop <i>true</i> for summing the last intermediary exactly
+     */
+    public void setExactLastHop(boolean exactLastHop) {
+        this.exactLastHop = exactLastHop;
+    }
+    
+    /**
+     * @return <i>true</i> if the last intermediary of the sampled chains is summed over exactly
+     */
+    public boolean isExactLastHop() {
+        return exactLastHop;
+    }
+    
+    /**
+     * Returns a new random number stream for sampling the chains of length <b>length</b>
+     * from <b>impactorIndex</b> to <b>impactedIndex</b>.
+     * If the sampler is seeded, the stream is seeded with a hash of the seed and the stratum,
+     * and the same stratum always gets the same stream;
+     * otherwise the stream is seeded randomly.
+     * @param impactorIndex Index of impactor variable of the stratum
+     * @param impactedIndex Index of impacted variable of the stratum
+     * @param length Length of the chains of the stratum
+     * @return SplittableRandom
+     */
+    protected SplittableRandom stratumRandom(int impactorIndex, int impactedIndex, int length) {
+        if(seed == null) return new SplittableRandom();
+        long stratum = ((long)impactorIndex << 42) ^ ((long)impactedIndex << 21) ^ length;
+        return new SplittableRandom(mix64(seed + mix64(stratum)));
+    }
+    
+    /**
+     * Bit mixing function of MurmurHash3 (variant 13 of Stafford),
+     * which spreads small differences in the strata over all bits of the seed.
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+    
+    /**
+     * Runs <b>tasks</b> with the threads of the sampler and waits until all of them are done.
+     * The results of the tasks can then be read with <tt>join</tt>.
+     * @param tasks Tasks to run
+     */
+    protected void runTasks(Collection<? extends ForkJoinTask<?>> tasks) {
+        runner.invokeAll(tasks);
+    }
+    
+    
     /**
      * Returns a summed impact matrix 
      * describing the sum of direct and indirect impacts
@@ -74,20 +194,13 @@ public abstract class Sampler {
     
     
     /**
-     * Calculates a sample mean from a sample of <tt>ImpactChain</tt>s.
-     * Sample mean is the sum of relative impacts of the impact chains
-     * in the sample divided by the sample size.
-     * in a <tt>List</tt>.
-     * @param sample <tt>List</tt> of <tt>ImpactChain</tt>s.
-     * @return double: sample mean
+     * Returns a summed impact matrix like {@link Sampler#estimateSummedImpactMatrix(int)}
+     * together with the standard errors of its estimated cells,
+     * derived from the sample variances of the sampled strata.
+     * @param sampleSize
+     * @return SampledEstimate : summed direct and indirect impact matrix and its standard errors
      */
-    public static double sampleMean(List<ImpactChain> sample) {
-        double sum = 0;
-        for (ImpactChain i : sample) {
-            sum += i.impact();
-        }
-        return sum / sample.size();
-    }
+    public abstract SampledEstimate estimateWithStandardError(int sampleSize);
     
     
     /**
@@ -102,25 +215,50 @@ public abstract class Sampler {
     public CrossImpactMatrix computeAll() {
         
         CrossImpactMatrix summedImpactMatrix = new CrossImpactMatrix(matrix.copy().copyWithoutValues());
+        int varCount = summedImpactMatrix.getVarCount();
         
         report("Computing all summed impacts in input matrix");
-        for(int impactor=1; impactor<=summedImpactMatrix.getVarCount(); impactor++) {
-            for(int impacted=1;impacted<=summedImpactMatrix.getVarCount();impacted++) {
-                for(int length=2;length<=summedImpactMatrix.getVarCount();length++) {
-                    if(impactor != impacted) {
-                        report(String.format("Computing impact of %s on %s", matrix.getNameShort(impactor), matrix.getNameShort(impacted)));
-                        double currentValue = summedImpactMatrix.getValue(impactor, impacted);
-                        double addedValue   = computeAll(impactor,impacted, length);
-                        summedImpactMatrix.setValue(impactor, impacted, currentValue + addedValue );
-                    }
-                        
+        List<SweepTask> tasks = new ArrayList<>();
+        for(int impactor=1; impactor<=varCount; impactor++) {
+            tasks.add(new SweepTask(impactor, 0, varCount));
+        }
+        runTasks(tasks);
+        
+        for(SweepTask task : tasks) {
+            double[] sums = task.join();
+            for(int impacted=1;impacted<=varCount;impacted++) {
+                if(task.impactorIndex == impacted) continue;
+                double summedImpact = 0;
+                for(int length=2;length<=varCount;length++) {
+                    summedImpact += sums[length*varCount + impacted-1];
                 }
+                summedImpactMatrix.setValue(task.impactorIndex, impacted, summedImpact);
             }
         }
         return summedImpactMatrix;
     }
     
     
+    /**
+     * Computes the summed impacts of all chains starting from <b>impactorIndex</b>
+     * whose length is <b>maxLength</b> or shorter,
+     * separately for each impacted variable and chain length.
+     * The chains are walked through once, 
+     * instead of separately for each impacted variable and chain length.
+     * The walk is split into fork/join tasks 
+     * by the first intermediary variable of the chains.
+     * @param impactorIndex Index of impactor variable
+     * @param maxLength Length of the longest computed chains
+     * @return double[] : summed relative impact of chains of length <i>l</i> 
+     * ending at variable <i>v</i> at index <tt>l * varCount + (v-1)</tt>
+     * @see ChainEnumerator#sweep(int, int, double[])
+     */
+    protected double[] computeAllFrom(int impactorIndex, int maxLength) {
+        assert maxLength > 1 && maxLength <= matrix.getVarCount();
+        return runner.invoke(new SweepTask(impactorIndex, 0, maxLength));
+    }
+    
+    
     /**
      * Computes the summed impact of all possible impact chains 
      * starting from variable with index <b>impactorIndex</b>
@@ -132,6 +270,8 @@ public abstract class Sampler {
      * for sets of short chains, it is faster to sum all possible chains 
      * of that length
      * than to accurately sample with replacement.
+     * Each call walks the chains with its own copy of the chain enumerator,
+     * so the method can be called from several threads at once.
      * 
      * @param impactorIndex Index of impactor variable
      * @param impactedIndex Index of impacted variable
@@ -139,95 +279,71 @@ public abstract class Sampler {
      * @return double : summed relative impacts of chains meeting the criteria
      */
     protected double computeAll(int impactorIndex, int impactedIndex, int length) {
-        List<Integer> usedIndices = new ArrayList<>();
-        usedIndices.add(impactorIndex);
-        usedIndices.add(impactedIndex);
-        return computeAll(impactorIndex, impactedIndex, length, usedIndices);
+        return enumerator.copy().sumChains(impactorIndex, impactedIndex, length);
     }
     
     
     /**
-     * Returns the relative impact of chain if chain is of length <b>length</b> 
-     * or recursively calls <tt>computeAll</tt> to expand chain by one of the 
-     * available indices.
-     * @param impactorIndex Index of impactor variable in the computed chains
-     * @param impactedIndex Index of impacted variable in the computed chains
-     * @param length Length of the computed chains
-     * @param usedIndices Indices of variables in <b>matrix</b> that are present in the chain that is being built by the method
-     * @return double : sum of relative impacts of meeting the criteria
+     * Fork/join task that sums the relative impacts of the chains
+     * starting from an impactor, for every impacted variable and chain length
+     * up to <b>maxLength</b>.
+     * Without a <b>firstIntermediary</b>, the task forks a subtask 
+     * for each possible first intermediary variable
+     * and merges the partial sums of the subtasks;
+     * idle threads steal the subtasks, 
+     * so the uneven sizes of the chain subtrees are balanced dynamically.
      */
-    private double computeAll(int impactorIndex, int impactedIndex, int length, List<Integer> usedIndices) {
+    private class SweepTask extends RecursiveTask<double[]> {
         
-        assert usedIndices != null;
+        final int impactorIndex;
+        /** Second variable of the summed chains, 0 if not fixed */
+        final int firstIntermediary;
+        final int maxLength;
         
-        List<Integer> available = availableIndices(usedIndices);
-        if( available.isEmpty() || (usedIndices.size() >= length) ) {
-            return new ImpactChain(matrix, usedIndices).impact();
-        } else {
-            double impactSum = 0;
-            for(Integer i : available) {
-                List<Integer> used = new ArrayList<>(usedIndices);
-                used.add(used.size()-1, i);
-                impactSum += Sampler.this.computeAll(impactorIndex, impactedIndex, length, used);
-            }
-            return impactSum;
+        SweepTask(int impactorIndex, int firstIntermediary, int maxLength) {
+            this.impactorIndex = impactorIndex;
+            this.firstIntermediary = firstIntermediary;
+            this.maxLength = maxLength;
         }
-    }
-    
-    
-    
-    /**
-     * Returns a list of integers that are the indices of variables in an impact chain
-     * that starts with <b>impactorIndex</b>, ends with <b>impactedIndex</b>, 
-     * the intermediary indices (indices between impactor and impacted) are picked
-     * randomly without replacement from the variables of the <b>matrix</b>.
-     * @param impactorIndex Index of impactor variable of the chain
-     * @param impactedIndex Index of impacted variable of the chain
-     * @param totalLength Total length of the chain
-     * @return List of integers representing impact chain variable indices
-     */
-    protected List<Integer> randomIndices(int impactorIndex, int impactedIndex, int totalLength) {
-        assert matrix.isIndexValid(impactorIndex) && matrix.isIndexValid(impactedIndex);
-        assert totalLength > 1 && totalLength <= matrix.getVarCount();
-        List<Integer> indices = new ArrayList<>();
-        List<Integer> available = intermediaryIndices(impactorIndex, impactedIndex);
-        int i=0;
-        Collections.shuffle(available);
-        indices.add(impactorIndex);
-        while(totalLength-- > 2) indices.add(available.get(i++));
-        indices.add(impactedIndex);
-        return indices;
-    }
-    
-    
-    /**
-     * Returns a list of possible indices of intermediary variables for chain generation for <b>matrix</b>.
-     * @param impactorIndex Index of impactor variable of the chain
-     * @param impactedIndex Index of impacted variable of the chain
-     * @return List&lt;Integer&gt; : possible intermediary indices between impactor and impacted 
-     */
-    protected List<Integer> intermediaryIndices(int impactorIndex, int impactedIndex) {
-        assert matrix.isIndexValid(impactorIndex) && matrix.isIndexValid(impactedIndex);
-        List<Integer> indices = new ArrayList<>();
-        for(int i=1;i<=matrix.getVarCount();i++) {
-            if(i != impactorIndex && i != impactedIndex) {
-                indices.add(i);
+        
+        @Override
+        protected double[] compute() {
+            int varCount = matrix.getVarCount();
+            
+            if(firstIntermediary != 0) {
+                double[] sums = new double[(maxLength+1)*varCount];
+                enumerator.copy().sweep(impactorIndex, firstIntermediary, maxLength, sums);
+                return sums;
+            }
+            
+            List<SweepTask> subtasks = new ArrayList<>();
+            for(int i=1;i<=varCount;i++) {
+                if(i != impactorIndex) subtasks.add(new SweepTask(impactorIndex, i, maxLength));
             }
+            invokeAll(subtasks);
+            
+            double[] sums = subtasks.get(0).join();
+            for(int t=1;t<subtasks.size();t++) {
+                double[] partialSums = subtasks.get(t).join();
+                for(int i=0;i<sums.length;i++) sums[i] += partialSums[i];
+            }
+            return sums;
         }
-        return indices;
     }
     
+    
     /**
-     * Returns the variable indices that are available in <b>matrix</b>
-     * but are not present in <b>usedIndices</b>.
-     * @param usedIndices A list of used variable indices
-     * @return List of integers representing variable indices
+     * Returns the random chain generator of the current thread, reset to its initial state.
+     * The generator reuses its pool of intermediary variables for every chain it draws,
+     * so sampling does not allocate anything per chain.
+     * As the generator is reset, the chains drawn with it depend only on the random number stream
+     * and not on what the thread has sampled before.
+     * @return RandomChainGenerator
      */
-    protected List<Integer> availableIndices(List<Integer> usedIndices) {
-        List<Integer> available = new ArrayList<>();
-        if(usedIndices == null) usedIndices = new ArrayList<>();
-        for(int i=1;i<=matrix.getVarCount();i++) {if(!usedIndices.contains(i)) available.add(i);}
-        return available;
+    protected RandomChainGenerator chainGenerator() {
+        RandomChainGenerator generator = chainGenerators.get();
+        generator.reset();
+        return generator;
     }
     
     
@@ -0,0 +1,293 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.estimators;
+
+import exit.matrices.ChainEnumerator;
+import exit.matrices.CompactChain;
+import exit.matrices.EXITImpactMatrix;
+import exit.matrices.FrozenImpactMatrix;
+import exit.matrices.ImpactChain;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <tt>StrongestChainFinder</tt> finds the impact chains with the greatest absolute impact,
+ * either the <i>k</i> strongest chains of the whole matrix
+ * or the <i>k</i> strongest chains between each impactor and impacted variable.
+ * <p>The chains are not collected above a fixed threshold:
+ * the strongest chains found so far are kept in bounded min-heaps,
+ * and the chain space is walked strongest first
+ * (see {@link ChainEnumerator#enumerateStrongest(int, exit.matrices.ChainEnumerator.StrongChainCollector)}),
+ * skipping the chains that cannot get into a full heap.
+ * The walk is made in rounds with a falling threshold, 
+ * starting from {@link StrongestChainFinder#INITIAL_THRESHOLD}:
+ * each round walks the chains stronger than the threshold
+ * and collects those that were not collected in the earlier rounds,
+ * and the search ends when the heaps are full,
+ * so the strongest chains are found before the bounds of the heaps are set by weak ones.
+ * A chain ending at <i>v</i> cannot get into the heap of impacted variable <i>j</i>
+ * through its continuations if its absolute impact times
+ * the greatest absolute relative impact of any variable on <i>j</i>
+ * is at most the least impact in the heap.
+ * The memory use is thus bounded by the heaps, <i>k</i> chains per variable pair,
+ * however many chains there are, and the result is exact.
+ * Chains with no impact are never included;
+ * if a variable pair has less than <i>k</i> chains with an impact,
+ * all chains from its impactor are walked in the last round.</p>
+ * <p>The chains starting from each impactor are walked in a fork/join task of their own
+ * (see {@link StrongestChainFinder#setParallelism(int)}).</p>
+ * @author jmpaon
+ */
+public class StrongestChainFinder {
+
+    public final EXITImpactMatrix matrix;
+    public final PrintStream reportingStream;
+
+    /** Runner of the search tasks */
+    private final TaskRunner runner = new TaskRunner();
+    /** Relative direct impacts of <b>matrix</b> when the finder was created */
+    private final FrozenImpactMatrix impacts;
+    /** Greatest absolute relative impact on each variable, 0-based */
+    private final double[] strongestImpactOn;
+
+    /** Threshold of the first round of the search */
+    public static final double INITIAL_THRESHOLD = 0.5;
+    /** Factor by which the threshold falls after each round */
+    private static final double THRESHOLD_STEP = 0.25;
+    /** Threshold below which the last round walks all chains */
+    private static final double MIN_THRESHOLD = 1e-9;
+
+    /** Orders chains by increasing absolute impact, the weakest at the head of a heap */
+    private static final Comparator<CompactChain> WEAKEST_FIRST = (c1, c2) -> Double.compare(Math.abs(c1.impact()), Math.abs(c2.impact()));
+
+
+    public StrongestChainFinder(EXITImpactMatrix matrix) {
+        this(matrix, null);
+    }
+
+    public StrongestChainFinder(EXITImpactMatrix matrix, PrintStream reportingStream) {
+        this.matrix = matrix;
+        this.reportingStream = reportingStream;
+        this.impacts = matrix.freeze();
+        int n = matrix.getVarCount();
+        this.strongestImpactOn = new double[n];
+        for(int j=0;j<n;j++) {
+            for(int i=0;i<n;i++) {
+                if(i != j) strongestImpactOn[j] = Math.max(strongestImpactOn[j], Math.abs(impacts.impactOn(j, i)));
+            }
+        }
+    }
+
+    protected void report(String text) {
+        assert text != null;
+        if(this.reportingStream != null) reportingStream.println(text);
+    }
+
+    /**
+     * Sets the number of threads used in the search.
+     * @param parallelism Number of threads, must be at least 1
+     */
+    public void setParallelism(int parallelism) {
+        runner.setParallelism(parallelism);
+    }
+
+    /**
+     * @return The number of threads used in the search
+     */
+    public int getParallelism() {
+        return runner.getParallelism();
+    }
+
+
+    /**
+     * Finds the <b>k</b> chains of the matrix with the greatest absolute impact.
+     * @param k Number of chains, at least 1
+     * @return List&lt;ImpactChain&gt; : the strongest chains in the order of decreasing absolute impact
+     */
+    public List<ImpactChain> strongestChains(int k) {
+        if(k < 1) throw new IllegalArgumentException("Number of chains must be at least 1");
+        List<SearchTask> tasks = search(k, false);
+        PriorityQueue<CompactChain> strongest = new PriorityQueue<>(WEAKEST_FIRST);
+        for(SearchTask task : tasks) {
+            for(CompactChain chain : task.join()[0]) offer(strongest, chain, k);
+        }
+        return strongestFirst(strongest);
+    }
+
+    /**
+     * Finds the <b>k</b> chains with the greatest absolute impact
+     * between each impactor and impacted variable.
+     * @param k Number of chains for each variable pair, at least 1
+     * @return List&lt;ImpactChain&gt; : the strongest chains of each variable pair
+     * in the order of decreasing absolute impact, the pairs ordered by impactor and impacted index
+     */
+    public List<ImpactChain> strongestChainsByPair(int k) {
+        if(k < 1) throw new IllegalArgumentException("Number of chains must be at least 1");
+        List<SearchTask> tasks = search(k, true);
+        List<ImpactChain> chains = new ArrayList<>();
+        for(SearchTask task : tasks) {
+            for(PriorityQueue<CompactChain> heap : task.join()) {
+                if(heap != null) chains.addAll(strongestFirst(heap));
+            }
+        }
+        return chains;
+    }
+
+
+    /**
+     * Runs a search task for each impactor and waits for them to finish.
+     */
+    private List<SearchTask> search(int k, boolean byPair) {
+        report(String.format("Searching for the %d strongest impact chains%s with %d threads", k, byPair ? " of each variable pair" : "", getParallelism()));
+        ChainEnumerator enumerator = new ChainEnumerator(impacts);
+        List<SearchTask> tasks = new ArrayList<>();
+        for(int impactor=1; impactor<=matrix.getVarCount(); impactor++) {
+            tasks.add(new SearchTask(enumerator, impactor, k, byPair));
+        }
+        runner.invokeAll(tasks);
+        return tasks;
+    }
+
+    /**
+     * Adds <b>chain</b> to <b>heap</b> of at most <b>k</b> chains
+     * if the heap is not full or the chain is stronger than its weakest chain.
+     * @return <i>true</i> if the chain was added
+     */
+    private static boolean offer(PriorityQueue<CompactChain> heap, CompactChain chain, int k) {
+        if(heap.size() < k) {
+            heap.add(chain);
+            return true;
+        }
+        if(Math.abs(chain.impact()) <= Math.abs(heap.peek().impact())) return false;
+        heap.poll();
+        heap.add(chain);
+        return true;
+    }
+
+    private static List<ImpactChain> strongestFirst(PriorityQueue<CompactChain> heap) {
+        CompactChain[] chains = heap.toArray(new CompactChain[heap.size()]);
+        Arrays.sort(chains, WEAKEST_FIRST.reversed().thenComparing(Comparator.naturalOrder()));
+        List<ImpactChain> list = new ArrayList<>(chains.length);
+        for(CompactChain chain : chains) list.add(new ImpactChain(chain));
+        return list;
+    }
+
+
+    /**
+     * Fork/join task that collects the strongest chains starting from an impactor:
+     * into one heap, or into a heap for each impacted variable.
+     */
+    private class SearchTask extends RecursiveTask<PriorityQueue<CompactChain>[]> implements ChainEnumerator.StrongChainCollector {
+
+        final ChainEnumerator enumerator;
+        final int impactor;
+        final int k;
+        final boolean byPair;
+        /** One heap, or a heap for each impacted variable at its index */
+        final PriorityQueue<CompactChain>[] heaps;
+        /** Least impact in each heap, -1 if the heap is not full */
+        final double[] floors;
+        double least = -1;
+        double leastContinued = -1;
+        /** Threshold of the current round */
+        double threshold;
+        /** Threshold of the previous round, above which the chains are already collected */
+        double collected;
+
+        @SuppressWarnings("unchecked")
+        SearchTask(ChainEnumerator enumerator, int impactor, int k, boolean byPair) {
+            this.enumerator = enumerator;
+            this.impactor = impactor;
+            this.k = k;
+            this.byPair = byPair;
+            int n = matrix.getVarCount();
+            this.heaps = (PriorityQueue<CompactChain>[]) new PriorityQueue<?>[byPair ? n+1 : 1];
+            for(int j=0;j<heaps.length;j++) {
+                if(!byPair || (j > 0 && j != impactor)) heaps[j] = new PriorityQueue<>(WEAKEST_FIRST);
+            }
+            this.floors = new double[heaps.length];
+            Arrays.fill(floors, -1);
+        }
+
+        @Override
+        protected PriorityQueue<CompactChain>[] compute() {
+            ChainEnumerator walker = enumerator.copy();
+            threshold = INITIAL_THRESHOLD;
+            collected = Double.POSITIVE_INFINITY;
+            while(true) {
+                updateLimits();
+                walker.enumerateStrongest(impactor, this);
+                if(threshold == 0 || isComplete()) return heaps;
+                collected = threshold;
+                threshold = threshold * THRESHOLD_STEP >= MIN_THRESHOLD ? threshold * THRESHOLD_STEP : 0;
+            }
+        }
+
+        /**
+         * @return <i>true</i> if the heaps of all variables that can be impacted are full;
+         * the chains not yet walked are at most as strong as the threshold, 
+         * and the chains in the heaps are stronger
+         */
+        private boolean isComplete() {
+            for(int j=0;j<heaps.length;j++) {
+                if(heaps[j] == null || (byPair && strongestImpactOn[j-1] == 0)) continue;
+                if(heaps[j].size() < k) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public double least() {
+            return least;
+        }
+
+        @Override
+        public double leastContinued() {
+            return leastContinued;
+        }
+
+        @Override
+        public void collect(int[] chain, int length, double impact) {
+            if(Math.abs(impact) > collected) return;
+            int h = byPair ? chain[length-1] : 0;
+            if(floors[h] >= 0 && Math.abs(impact) <= floors[h]) return;
+            offer(heaps[h], new CompactChain(matrix, Arrays.copyOf(chain, length)), k);
+            if(heaps[h].size() == k) {
+                floors[h] = Math.abs(heaps[h].peek().impact());
+                updateLimits();
+            }
+        }
+
+        /**
+         * Updates the limits at the start of a round and after the floor of a heap rose.
+         * A chain is of interest if it is stronger than the threshold 
+         * and may get into the heap of some impacted variable,
+         * and its continuations if they may get there through the strongest impact on the variable.
+         */
+        private void updateLimits() {
+            if(!byPair) {
+                least = leastContinued = Math.max(floors[0], threshold);
+                return;
+            }
+            double leastFloor = Double.POSITIVE_INFINITY, leastScaled = Double.POSITIVE_INFINITY;
+            for(int j=1;j<heaps.length;j++) {
+                /* No chain ends at a variable on which no variable has an impact */
+                if(j == impactor || strongestImpactOn[j-1] == 0) continue;
+                double floor = Math.max(floors[j], threshold);
+                leastFloor = Math.min(leastFloor, floor);
+                leastScaled = Math.min(leastScaled, floor / strongestImpactOn[j-1]);
+            }
+            least = leastFloor;
+            leastContinued = leastScaled;
+        }
+    }
+
+}
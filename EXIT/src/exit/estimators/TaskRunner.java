@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.estimators;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <tt>TaskRunner</tt> runs the fork/join tasks of an estimator with a set number of threads.
+ * Each call runs the tasks in a pool of its own and shuts the pool down when they are done,
+ * so no threads are left waiting between the calls or after the estimator is no longer used.
+ * @author jmpaon
+ */
+final class TaskRunner {
+
+    /** Number of threads that run the tasks */
+    private int parallelism = 1;
+
+
+    /**
+     * @param parallelism Number of threads, must be at least 1
+     */
+    void setParallelism(int parallelism) {
+        if(parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return The number of threads that run the tasks
+     */
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs <b>task</b> and the tasks it forks and waits until it is done.
+     * @param <T> Type of the result of the task
+     * @param task Task to run
+     * @return The result of <b>task</b>
+     */
+    <T> T invoke(ForkJoinTask<T> task) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs <b>tasks</b> and waits until all of them are done.
+     * The results of the tasks can then be read with <tt>join</tt>.
+     * @param tasks Tasks to run
+     */
+    void invokeAll(Collection<? extends ForkJoinTask<?>> tasks) {
+        invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                ForkJoinTask.invokeAll(tasks);
+                return null;
+            }
+        });
+    }
+
+}
@@ -88,6 +88,13 @@ public class Options {
         catch(Exception e) {throw new EXITargumentException("Error in querying %s as int", id);}
     }
     
+    public Long queryLong(String id) throws EXITargumentException {
+        Option o = query(id);
+        try {return (Long)o.get();} 
+        catch(ClassCastException e) {throw new EXITargumentException("Value of %s is not a long", id);}
+        catch(Exception e) {throw new EXITargumentException("Error in querying %s as long", id);}
+    }
+    
     public Character queryChar(String id) throws EXITargumentException {
         Option o = query(id);
         try {return (Character)o.get();}
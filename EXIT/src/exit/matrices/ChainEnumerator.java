@@ -0,0 +1,526 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+import java.util.Arrays;
+
+/**
+ * <tt>ChainEnumerator</tt> enumerates the impact chains of an <tt>EXITImpactMatrix</tt>
+ * depth-first without creating any objects per chain.
+ * The chain being built is kept in an <code>int[]</code> stack,
+ * the variables present in the chain in a bitmask
+ * and the relative impact of the chain is carried along as a running product,
+ * so continuing a chain by one variable costs O(1)
+ * instead of the O(length) of building and evaluating a new <tt>ImpactChain</tt>.
+ * Chains are only continued along the non-zero direct impacts
+ * listed in a {@link SparseImpactMatrix},
+ * because a chain continued along a zero impact and all its continuations have zero impact,
+ * so the branching factor of the walk is the number of non-zero impacts of a variable
+ * instead of the number of variables.
+ * <p>An instance holds the state of one enumeration
+ * and must not be used by several threads at the same time;
+ * {@link ChainEnumerator#copy()} returns an enumerator for another thread.</p>
+ * @author jmpaon
+ */
+public final class ChainEnumerator {
+
+    /**
+     * Receives the chains generated by {@link ChainEnumerator#enumerate(int, int, exit.matrices.ChainEnumerator.ChainVisitor)}.
+     */
+    public interface ChainVisitor {
+
+        /**
+         * Called for each enumerated chain.
+         * @param chain Variable indices of the chain, impactor first;
+         * only the first <b>length</b> positions belong to the chain.
+         * The array is reused and must not be modified or stored.
+         * @param length Number of variables in the chain
+         * @param impact Relative impact of the chain
+         * @return <i>true</i> if the continuations of the chain should be enumerated
+         */
+        boolean visit(int[] chain, int length, double impact);
+    }
+    
+    
+    /**
+     * Receives the chains generated by 
+     * {@link ChainEnumerator#enumerateStrongest(int, exit.matrices.ChainEnumerator.StrongChainCollector)}
+     * and tells which chains are still of interest.
+     * The limits may rise as chains are collected.
+     */
+    public interface StrongChainCollector {
+        
+        /**
+         * @return Absolute impact at or below which a chain is of no interest
+         */
+        double least();
+        
+        /**
+         * @return Absolute impact at or below which the continuations of a chain are of no interest
+         */
+        double leastContinued();
+        
+        /**
+         * Called for each enumerated chain whose absolute impact is above {@link StrongChainCollector#least()}.
+         * @param chain Variable indices of the chain, impactor first;
+         * only the first <b>length</b> positions belong to the chain.
+         * The array is reused and must not be modified or stored.
+         * @param length Number of variables in the chain
+         * @param impact Relative impact of the chain
+         */
+        void collect(int[] chain, int length, double impact);
+    }
+
+
+    /** Number of variables in the enumerated matrix */
+    private final int varCount;
+    /** Relative direct impacts in a 0-based flat array, shared with the <tt>FrozenImpactMatrix</tt> */
+    private final double[] weights;
+    /** Non-zero relative direct impacts of each variable */
+    private final SparseImpactMatrix sparse;
+    /** Position of the first non-zero impact of each 0-based variable in the lists of <code>sparse</code> */
+    private final int[] rowStart;
+    /** 0-based indices of the impacted variables in the order of indices, row by row */
+    private final int[] columns;
+    /** Relative impacts on the variables of <code>columns</code> */
+    private final double[] impacts;
+    /** 
+     * 0-based indices of the impacted variables of each variable 
+     * in the order of decreasing absolute relative impact, row by row 
+     */
+    private final int[] strongestFirst;
+    /** Relative impacts on the variables of <code>strongestFirst</code> */
+    private final double[] strongestImpacts;
+    /** Indices of the variables in the chain being built */
+    private final int[] chain;
+    /** Bitmask of the variables present in the chain being built */
+    private final long[] visited;
+
+
+    /**
+     * Constructor
+     * @param matrix <tt>EXITImpactMatrix</tt> whose impact chains are enumerated
+     */
+    public ChainEnumerator(EXITImpactMatrix matrix) {
+        this(matrix.freeze());
+    }
+
+    /**
+     * Constructor
+     * @param impacts Relative impacts of the matrix whose impact chains are enumerated
+     */
+    public ChainEnumerator(FrozenImpactMatrix impacts) {
+        this(new SparseImpactMatrix(impacts));
+    }
+
+    /**
+     * Constructor
+     * @param sparse Non-zero relative impacts of the matrix whose impact chains are enumerated
+     */
+    public ChainEnumerator(SparseImpactMatrix sparse) {
+        this.varCount = sparse.varCount;
+        this.weights = sparse.source.impacts;
+        this.sparse = sparse;
+        this.rowStart = sparse.rowStart;
+        this.columns = sparse.columns;
+        this.impacts = sparse.impacts;
+        this.strongestFirst = sparse.strongest;
+        this.strongestImpacts = sparse.strongestImpacts;
+        this.chain = new int[varCount];
+        this.visited = new long[(varCount >> 6) + 1];
+    }
+
+
+    /**
+     * Returns a new enumerator for the same matrix,
+     * sharing the relative impacts of this enumerator
+     * but having its own enumeration state.
+     * @return ChainEnumerator
+     */
+    public ChainEnumerator copy() {
+        return new ChainEnumerator(sparse);
+    }
+
+
+    /**
+     * @return The number of variables in the enumerated matrix
+     */
+    public int getVarCount() {
+        return varCount;
+    }
+
+
+    /**
+     * Returns the relative direct impact of <b>impactor</b> on <b>impacted</b>.
+     * @param impactor Index of impactor variable
+     * @param impacted Index of impacted variable
+     * @return double : relative direct impact
+     */
+    public double relativeImpact(int impactor, int impacted) {
+        return weights[(impactor-1)*varCount + impacted-1];
+    }
+    
+    
+    /**
+     * Returns the number of variables on which <b>impactor</b> has a non-zero impact.
+     * @param impactor Index of impactor variable
+     * @return int : number of non-zero direct impacts
+     */
+    public int successorCount(int impactor) {
+        return sparse.successorCount(impactor);
+    }
+    
+    
+    /**
+     * Returns the variable on which <b>impactor</b> has 
+     * the <b>rank</b>:th greatest absolute relative impact.
+     * @param impactor Index of impactor variable
+     * @param rank Rank of the impact, 0 for the greatest absolute impact,
+     * less than {@link ChainEnumerator#successorCount(int)}
+     * @return int : index of the impacted variable
+     */
+    public int impactedByRank(int impactor, int rank) {
+        return sparse.successorByRank(impactor, rank);
+    }
+
+
+    /**
+     * Enumerates depth-first all chains that start from <b>impactor</b>
+     * and have at least 2 and at most <b>maxLength</b> variables.
+     * Each chain is passed to <b>visitor</b> before its continuations.
+     * Chains containing a zero direct impact are not generated.
+     * @param impactor Index of the impactor variable
+     * @param maxLength Maximum number of variables in the enumerated chains
+     * @param visitor Receiver of the chains; decides whether each chain is continued
+     */
+    public void enumerate(int impactor, int maxLength, ChainVisitor visitor) {
+        assert impactor > 0 && impactor <= varCount;
+        assert maxLength <= varCount;
+        Arrays.fill(visited, 0);
+        chain[0] = impactor;
+        mark(impactor);
+        extend(1, maxLength, 1, visitor);
+        unmark(impactor);
+    }
+
+    private void extend(int length, int maxLength, double product, ChainVisitor visitor) {
+        int row = chain[length-1]-1;
+        for(int p=rowStart[row]; p<rowStart[row+1]; p++) {
+            int v = columns[p]+1;
+            if(isMarked(v)) continue;
+            double impact = product * impacts[p];
+            chain[length] = v;
+            if(visitor.visit(chain, length+1, impact) && length+1 < maxLength && impact != 0) {
+                mark(v);
+                extend(length+1, maxLength, impact, visitor);
+                unmark(v);
+            }
+        }
+    }
+
+
+    /**
+     * Enumerates depth-first the chains that start from <b>impactor</b>
+     * and are of interest to <b>collector</b>, continuing each chain strongest first.
+     * As the absolute impact of a chain cannot grow when it is continued,
+     * the continuations of a chain are generated in the order of decreasing absolute impact
+     * until the first one at or below {@link StrongChainCollector#least()},
+     * and a chain is continued only if its absolute impact is above
+     * {@link StrongChainCollector#leastContinued()}.
+     * Chains with no impact are not generated.
+     * @param impactor Index of the impactor variable
+     * @param collector Receiver of the chains
+     */
+    public void enumerateStrongest(int impactor, StrongChainCollector collector) {
+        assert impactor > 0 && impactor <= varCount;
+        Arrays.fill(visited, 0);
+        chain[0] = impactor;
+        mark(impactor);
+        extendStrongest(1, 1, collector);
+        unmark(impactor);
+    }
+
+    private void extendStrongest(int length, double product, StrongChainCollector collector) {
+        int row = chain[length-1]-1;
+        for(int p=rowStart[row]; p<rowStart[row+1]; p++) {
+            int v = strongestFirst[p];
+            double impact = product * strongestImpacts[p];
+            if(Math.abs(impact) <= collector.least()) break;
+            if(isMarked(v+1)) continue;
+            chain[length] = v+1;
+            collector.collect(chain, length+1, impact);
+            if(length+1 < varCount && Math.abs(impact) > collector.leastContinued()) {
+                mark(v+1);
+                extendStrongest(length+1, impact, collector);
+                unmark(v+1);
+            }
+        }
+    }
+
+
+    /**
+     * Walks once through all chains that start from <b>impactor</b>
+     * and have at least 2 and at most <b>maxLength</b> variables,
+     * and adds the relative impact of each chain to <b>sums</b>
+     * at the position of its length and impacted variable.
+     * A single walk thus gives the summed impacts of the impactor
+     * on every impacted variable for every chain length.
+     * @param impactor Index of the impactor variable
+     * @param maxLength Maximum number of variables in the summed chains
+     * @param sums Accumulator of at least <tt>(maxLength+1) * varCount</tt> elements;
+     * the impacts of chains of length <i>l</i> ending at <i>v</i> are added at index <tt>l * varCount + (v-1)</tt>
+     */
+    public void sweep(int impactor, int maxLength, double[] sums) {
+        assert impactor > 0 && impactor <= varCount;
+        assert maxLength <= varCount && sums.length >= (maxLength+1) * varCount;
+        Arrays.fill(visited, 0);
+        chain[0] = impactor;
+        mark(impactor);
+        sweepContinuations(1, maxLength, 1, sums);
+        unmark(impactor);
+    }
+
+
+    /**
+     * Like {@link ChainEnumerator#sweep(int, int, double[])},
+     * but only walks through the chains whose second variable is <b>firstIntermediary</b>.
+     * The chains walked with each possible <b>firstIntermediary</b>
+     * together cover all the chains starting from <b>impactor</b>,
+     * so the walk can be split into independent parts.
+     * @param impactor Index of the impactor variable
+     * @param firstIntermediary Index of the second variable of the summed chains
+     * @param maxLength Maximum number of variables in the summed chains
+     * @param sums Accumulator, see {@link ChainEnumerator#sweep(int, int, double[])}
+     */
+    public void sweep(int impactor, int firstIntermediary, int maxLength, double[] sums) {
+        assert impactor != firstIntermediary;
+        assert maxLength > 1 && maxLength <= varCount && sums.length >= (maxLength+1) * varCount;
+        double first = relativeImpact(impactor, firstIntermediary);
+        if(first == 0) return;
+        sums[2*varCount + firstIntermediary-1] += first;
+        if(maxLength == 2) return;
+        Arrays.fill(visited, 0);
+        chain[0] = impactor;
+        chain[1] = firstIntermediary;
+        mark(impactor);
+        mark(firstIntermediary);
+        sweepContinuations(2, maxLength, first, sums);
+        unmark(firstIntermediary);
+        unmark(impactor);
+    }
+
+    private void sweepContinuations(int length, int maxLength, double product, double[] sums) {
+        int row = chain[length-1]-1;
+        int offset = (length+1) * varCount - 1;
+        boolean extend = length+1 < maxLength;
+        for(int p=rowStart[row]; p<rowStart[row+1]; p++) {
+            int v = columns[p]+1;
+            if(isMarked(v)) continue;
+            double impact = product * impacts[p];
+            if(impact == 0) continue;
+            sums[offset + v] += impact;
+            if(extend) {
+                chain[length] = v;
+                mark(v);
+                sweepContinuations(length+1, maxLength, impact, sums);
+                unmark(v);
+            }
+        }
+    }
+
+
+    /**
+     * Sums the relative impacts of the <i>significant</i> chains starting from <b>impactor</b>:
+     * the chains whose absolute relative impact is at least <b>threshold</b> and not 0.
+     * As the absolute impact of a chain cannot grow when it is continued,
+     * continuations are only generated from significant chains,
+     * and they are generated in the order of decreasing absolute impact, 
+     * so the generation stops at the first continuation that is not significant.
+     * The continuations that were not generated are recorded in <b>prunedImpacts</b>:
+     * when the continuations of a chain ending at <i>v</i>, with <i>k</i> variables not in the chain, 
+     * are cut at rank <i>r</i> (see {@link ChainEnumerator#impactedByRank(int, int)}),
+     * the absolute impact of the chain is added to <tt>prunedImpacts[k][(v-1) * varCount + r]</tt>.
+     * The rows of <b>prunedImpacts</b> are allocated when first needed.
+     * @param impactor Index of the impactor variable
+     * @param threshold Least absolute relative impact of the summed chains
+     * @param summedImpacts Accumulator of the impacts of the significant chains, indexed by impacted variable
+     * @param prunedImpacts Accumulator of the impacts of chains whose continuations were cut, 
+     * with <tt>varCount</tt> rows
+     * @return long : number of significant chains
+     */
+    public long sumSignificant(int impactor, double threshold, double[] summedImpacts, double[][] prunedImpacts) {
+        assert impactor > 0 && impactor <= varCount;
+        assert threshold >= 0 && summedImpacts.length > varCount && prunedImpacts.length >= varCount;
+        Arrays.fill(visited, 0);
+        chain[0] = impactor;
+        mark(impactor);
+        long count = sumSignificantContinuations(1, 1, threshold, summedImpacts, prunedImpacts);
+        unmark(impactor);
+        return count;
+    }
+
+    
+    /**
+     * Like {@link ChainEnumerator#sumSignificant(int, double, double[], double[][])},
+     * but only sums the chains whose second variable is <b>firstIntermediary</b>.
+     * The chain from <b>impactor</b> to <b>firstIntermediary</b> must be significant.
+     * Together with the direct impacts pruned from <b>impactor</b>
+     * (see {@link ChainEnumerator#significantImpactCount(int, double)}),
+     * the chains summed with each significant first intermediary
+     * cover all the chains starting from <b>impactor</b>,
+     * so the walk can be split into independent parts.
+     * @param impactor Index of the impactor variable
+     * @param firstIntermediary Index of the second variable of the summed chains
+     * @param threshold Least absolute relative impact of the summed chains
+     * @param summedImpacts Accumulator of the impacts of the significant chains, indexed by impacted variable
+     * @param prunedImpacts Accumulator of the impacts of chains whose continuations were cut
+     * @return long : number of significant chains
+     */
+    public long sumSignificant(int impactor, int firstIntermediary, double threshold, double[] summedImpacts, double[][] prunedImpacts) {
+        assert impactor != firstIntermediary;
+        double first = relativeImpact(impactor, firstIntermediary);
+        assert first != 0 && Math.abs(first) >= threshold;
+        summedImpacts[firstIntermediary] += first;
+        if(varCount == 2) return 1;
+        Arrays.fill(visited, 0);
+        chain[0] = impactor;
+        chain[1] = firstIntermediary;
+        mark(impactor);
+        mark(firstIntermediary);
+        long count = 1 + sumSignificantContinuations(2, first, threshold, summedImpacts, prunedImpacts);
+        unmark(firstIntermediary);
+        unmark(impactor);
+        return count;
+    }
+    
+    
+    /**
+     * Returns the number of variables on which <b>impactor</b> 
+     * has a significant direct impact:
+     * an absolute relative impact of at least <b>threshold</b> and not 0.
+     * These are the variables of ranks below the returned number
+     * (see {@link ChainEnumerator#impactedByRank(int, int)}).
+     * @param impactor Index of the impactor variable
+     * @param threshold Least absolute relative impact of a significant impact
+     * @return int : number of significant direct impacts
+     */
+    public int significantImpactCount(int impactor, double threshold) {
+        int start = rowStart[impactor-1], end = rowStart[impactor];
+        int p = start;
+        while(p < end && Math.abs(strongestImpacts[p]) >= threshold) p++;
+        return p - start;
+    }
+
+    private long sumSignificantContinuations(int length, double product, double threshold, double[] summedImpacts, double[][] prunedImpacts) {
+        int last = chain[length-1]-1;
+        int start = rowStart[last], end = rowStart[last+1];
+        double least = threshold / Math.abs(product);
+        boolean extend = length+1 < varCount;
+        long count = 0;
+        int p = start;
+        for(; p<end; p++) {
+            int v = strongestFirst[p];
+            double weight = strongestImpacts[p];
+            if(Math.abs(weight) < least) break;
+            if(isMarked(v+1)) continue;
+            double impact = product * weight;
+            if(Math.abs(impact) < threshold) break;
+            count++;
+            summedImpacts[v+1] += impact;
+            if(extend) {
+                chain[length] = v+1;
+                mark(v+1);
+                count += sumSignificantContinuations(length+1, impact, threshold, summedImpacts, prunedImpacts);
+                unmark(v+1);
+            }
+        }
+        if(p < end) {
+            int remaining = varCount - length;
+            if(prunedImpacts[remaining] == null) prunedImpacts[remaining] = new double[varCount*varCount];
+            prunedImpacts[remaining][last * varCount + p - start] += Math.abs(product);
+        }
+        return count;
+    }
+
+
+    /**
+     * Sums the relative impacts of all chains of exactly <b>length</b> variables
+     * that start from <b>impactor</b> and end to <b>impacted</b>.
+     * @param impactor Index of the impactor variable
+     * @param impacted Index of the impacted variable
+     * @param length Number of variables in the summed chains, including impactor and impacted
+     * @return double : summed relative impact of the chains
+     */
+    public double sumChains(int impactor, int impacted, int length) {
+        assert impactor != impacted;
+        assert length > 1 && length <= varCount;
+        Arrays.fill(visited, 0);
+        mark(impactor);
+        mark(impacted);
+        double sum = sumIntermediaries(impactor, impacted, length-2, 1);
+        unmark(impacted);
+        unmark(impactor);
+        return sum;
+    }
+
+
+    /**
+     * Sums the relative impacts of all chains of exactly <b>length</b> variables
+     * that start from <b>impactor</b>, continue to <b>firstIntermediary</b>
+     * and end to <b>impacted</b>.
+     * @param impactor Index of the impactor variable
+     * @param firstIntermediary Index of the second variable of the summed chains
+     * @param impacted Index of the impacted variable
+     * @param length Number of variables in the summed chains, at least 3
+     * @return double : summed relative impact of the chains
+     */
+    public double sumChains(int impactor, int firstIntermediary, int impacted, int length) {
+        assert impactor != impacted && firstIntermediary != impactor && firstIntermediary != impacted;
+        assert length > 2 && length <= varCount;
+        double first = relativeImpact(impactor, firstIntermediary);
+        if(first == 0) return 0;
+        Arrays.fill(visited, 0);
+        mark(impactor);
+        mark(firstIntermediary);
+        mark(impacted);
+        double sum = sumIntermediaries(firstIntermediary, impacted, length-3, first);
+        unmark(impacted);
+        unmark(firstIntermediary);
+        unmark(impactor);
+        return sum;
+    }
+
+    private double sumIntermediaries(int last, int impacted, int remaining, double product) {
+        if(remaining == 0) {
+            return product * weights[(last-1) * varCount + impacted-1];
+        }
+        double sum = 0;
+        for(int p=rowStart[last-1]; p<rowStart[last]; p++) {
+            int v = columns[p]+1;
+            if(isMarked(v)) continue;
+            double impact = product * impacts[p];
+            if(impact == 0) continue;
+            mark(v);
+            sum += sumIntermediaries(v, impacted, remaining-1, impact);
+            unmark(v);
+        }
+        return sum;
+    }
+
+
+    private boolean isMarked(int v) {
+        return (visited[v >>> 6] & (1L << v)) != 0;
+    }
+
+    private void mark(int v) {
+        visited[v >>> 6] |= (1L << v);
+    }
+
+    private void unmark(int v) {
+        visited[v >>> 6] &= ~(1L << v);
+    }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+import exit.EXITexception;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <tt>ChainStore</tt> holds a large number of impact chains of an <tt>EXITImpactMatrix</tt>
+ * outside the Java heap.
+ * Each chain is packed into a record of its length, the <tt>int</tt> indices of its members
+ * and its <tt>double</tt> impact, 12 bytes and 4 bytes per member,
+ * instead of the several hundred bytes of a boxed <tt>ImpactChain</tt> in a <tt>TreeSet</tt>.
+ * <p>The records are written into direct <tt>ByteBuffer</tt> blocks of {@link ChainStore#BLOCK_SIZE} bytes
+ * until the memory budget is used up.
+ * If spilling is allowed, further blocks are memory-mapped regions of a temporary file,
+ * which the operating system can page out, so the number of chains is limited by disk space only;
+ * otherwise adding a chain beyond the budget throws <tt>EXITexception</tt>.
+ * The temporary file is deleted when the store is closed,
+ * but Java cannot unmap the mapped blocks before they are garbage collected,
+ * so on systems that do not allow deleting a mapped file, such as Windows,
+ * the deletion fails and is tried again when the virtual machine exits.</p>
+ * <p>The chains can be iterated in the order they were added,
+ * or in the order of <tt>ImpactChain</tt> (shorter chains first, equal-length chains by member indices);
+ * the iterators keep the address of each record, one <tt>long</tt> per chain, on the heap.
+ * The iterators return <tt>CompactChain</tt>s created from the records;
+ * a {@link ChainStore.ChainVisitor} reads the records without creating objects,
+ * getting the impacts the chains had when they were added.</p>
+ * <p>The store is not thread-safe.</p>
+ * @author jmpaon
+ */
+public final class ChainStore implements Iterable<CompactChain>, Closeable {
+
+    /** Size of a block of records in bytes */
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    /** The cross-impact matrix whose chains are stored */
+    public final EXITImpactMatrix matrix;
+
+    /** Greatest number of bytes of direct memory used for blocks */
+    private final long memoryBudget;
+    /** Are blocks beyond the memory budget mapped from a temporary file */
+    private final boolean spill;
+
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    /** Number of bytes used in the last block */
+    private int position = BLOCK_SIZE;
+    private long size = 0;
+    private long directBytes = 0;
+
+    private File spillFile;
+    private RandomAccessFile spillAccess;
+    private int spilledBlocks = 0;
+    
+    
+    /**
+     * Receiver of the stored chains in primitive form.
+     */
+    public interface ChainVisitor {
+        /**
+         * @param members Array whose first <b>length</b> elements are the indices of the chain members, 
+         * impactor first; the array is reused for the next chain
+         * @param length Number of variables in the chain
+         * @param impact Relative impact of the chain
+         */
+        void visit(int[] members, int length, double impact);
+    }
+
+
+    /**
+     * Constructor
+     * @param matrix The cross-impact matrix whose chains are stored
+     * @param memoryBudget Greatest number of bytes of direct memory used for the chains,
+     * at least {@link ChainStore#BLOCK_SIZE}
+     * @param spill If <i>true</i>, chains beyond the memory budget are stored in a temporary file
+     */
+    public ChainStore(EXITImpactMatrix matrix, long memoryBudget, boolean spill) {
+        if(matrix == null) throw new NullPointerException("matrix is null");
+        if(memoryBudget < BLOCK_SIZE) throw new IllegalArgumentException("Memory budget must be at least " + BLOCK_SIZE + " bytes");
+        this.matrix = matrix;
+        this.memoryBudget = memoryBudget;
+        this.spill = spill;
+    }
+
+
+    /**
+     * Adds <b>chain</b> to the store.
+     * @param chain Chain of <b>matrix</b>
+     */
+    public void add(CompactChain chain) {
+        assert chain.matrix == matrix;
+        int length = chain.length();
+        if(length == 0) throw new IllegalArgumentException("Empty chains cannot be stored");
+        int recordSize = recordSize(length);
+        if(position + recordSize > BLOCK_SIZE) newBlock();
+        ByteBuffer block = blocks.get(blocks.size()-1);
+        block.putInt(position, length);
+        for(int k=0;k<length;k++) block.putInt(position + 4 + 4*k, chain.member(k));
+        block.putDouble(position + 4 + 4*length, chain.impact());
+        position += recordSize;
+        size++;
+    }
+
+    /**
+     * @return Number of chains in the store
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return Number of bytes of direct memory used for the chains
+     */
+    public long directBytes() {
+        return directBytes;
+    }
+
+    /**
+     * @return Number of bytes of the chains in the temporary file
+     */
+    public long spilledBytes() {
+        return (long)spilledBlocks * BLOCK_SIZE;
+    }
+
+
+    /**
+     * @return Iterator over the chains in the order they were added
+     */
+    @Override
+    public Iterator<CompactChain> iterator() {
+        return iterator(addresses());
+    }
+
+    /**
+     * Returns an iterator over the chains in the order of <tt>ImpactChain</tt>:
+     * shorter chains first, and chains of the same length in the order of their member indices.
+     * The chains added after the call are not included.
+     * @return Iterator over the chains in sorted order
+     */
+    public Iterator<CompactChain> sortedIterator() {
+        long[] addresses = addresses();
+        sort(addresses);
+        return iterator(addresses);
+    }
+
+    private Iterator<CompactChain> iterator(final long[] addresses) {
+        return new Iterator<CompactChain>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < addresses.length;
+            }
+
+            @Override
+            public CompactChain next() {
+                if(next == addresses.length) throw new NoSuchElementException();
+                return chainAt(addresses[next++]);
+            }
+        };
+    }
+
+
+    /**
+     * Passes the stored chains to <b>visitor</b> in the order they were added.
+     * @param visitor Receiver of the chains
+     */
+    public void visit(ChainVisitor visitor) {
+        int[] members = new int[matrix.getVarCount()];
+        for(int b=0;b<blocks.size();b++) {
+            int end = b == blocks.size()-1 ? position : BLOCK_SIZE;
+            for(int offset=0; offset+4 <= end; ) {
+                int length = blocks.get(b).getInt(offset);
+                if(length == 0) break;
+                offset += visitRecord((long)b << 32 | offset, members, visitor);
+            }
+        }
+    }
+
+    /**
+     * Passes the stored chains to <b>visitor</b> in the order of <tt>ImpactChain</tt>,
+     * like {@link ChainStore#sortedIterator()}.
+     * @param visitor Receiver of the chains
+     */
+    public void visitSorted(ChainVisitor visitor) {
+        long[] addresses = addresses();
+        sort(addresses);
+        int[] members = new int[matrix.getVarCount()];
+        for(long address : addresses) visitRecord(address, members, visitor);
+    }
+
+
+    /**
+     * Releases the blocks, closes the temporary file and deletes it.
+     * The file channel is closed before the deletion,
+     * but the mapped blocks stay mapped until they are garbage collected.
+     * If the file cannot be deleted while they are mapped,
+     * its deletion is tried again when the virtual machine exits.
+     */
+    @Override
+    public void close() {
+        blocks.clear();
+        size = 0;
+        position = BLOCK_SIZE;
+        directBytes = 0;
+        spilledBlocks = 0;
+        if(spillAccess != null) {
+            try {
+                spillAccess.close();
+            } catch(IOException ex) {
+                /* The file is deleted anyway */
+            }
+            /* If the blocks are still mapped, the file is deleted on exit */
+            spillFile.delete();
+            spillAccess = null;
+            spillFile = null;
+        }
+    }
+
+
+    /**
+     * Starts a new block of direct memory, or of the temporary file if the memory budget is used up.
+     */
+    private void newBlock() {
+        ByteBuffer block;
+        if(directBytes + BLOCK_SIZE <= memoryBudget) {
+            block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            directBytes += BLOCK_SIZE;
+        } else if(spill) {
+            try {
+                if(spillAccess == null) {
+                    spillFile = File.createTempFile("exit-chains", ".tmp");
+                    spillFile.deleteOnExit();
+                    spillAccess = new RandomAccessFile(spillFile, "rw");
+                }
+                block = spillAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, (long)spilledBlocks * BLOCK_SIZE, BLOCK_SIZE);
+                spilledBlocks++;
+            } catch(IOException ex) {
+                throw new EXITexception("Cannot store chains in a temporary file: %s", ex.getMessage());
+            }
+        } else {
+            throw new EXITexception("Memory budget of %d bytes for stored chains exceeded", memoryBudget);
+        }
+        blocks.add(block.order(ByteOrder.nativeOrder()));
+        position = 0;
+    }
+
+    /**
+     * @return Addresses of all records in the order they were added
+     */
+    private long[] addresses() {
+        if(size > Integer.MAX_VALUE - 8) throw new EXITexception("Too many chains for sorted iteration: %d", size);
+        long[] addresses = new long[(int)size];
+        int count = 0;
+        for(int b=0;b<blocks.size();b++) {
+            ByteBuffer block = blocks.get(b);
+            int end = b == blocks.size()-1 ? position : BLOCK_SIZE;
+            int offset = 0;
+            while(offset + 4 <= end && count < addresses.length) {
+                int length = block.getInt(offset);
+                if(length == 0) break;
+                addresses[count++] = (long)b << 32 | offset;
+                offset += recordSize(length);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Sorts <b>addresses</b> by the order of their chains in place.
+     */
+    private void sort(long[] addresses) {
+        sort(addresses, 0, addresses.length-1);
+    }
+
+    /**
+     * Quicksort of <b>addresses</b> from <b>low</b> to <b>high</b>, inclusive,
+     * with the middle element as the pivot, as the chains are often added partly sorted.
+     * The smaller part is sorted recursively, so the recursion depth stays logarithmic.
+     */
+    private void sort(long[] addresses, int low, int high) {
+        while(low < high) {
+            long pivot = addresses[(low + high) >>> 1];
+            int i = low, j = high;
+            while(i <= j) {
+                while(compare(addresses[i], pivot) < 0) i++;
+                while(compare(addresses[j], pivot) > 0) j--;
+                if(i <= j) {
+                    long swap = addresses[i]; addresses[i] = addresses[j]; addresses[j] = swap;
+                    i++; j--;
+                }
+            }
+            if(j - low < high - i) {
+                sort(addresses, low, j);
+                low = i;
+            } else {
+                sort(addresses, i, high);
+                high = j;
+            }
+        }
+    }
+
+    /**
+     * Compares the chains at two addresses like {@link CompactChain#compareTo(exit.matrices.CompactChain)}.
+     */
+    private int compare(long address1, long address2) {
+        ByteBuffer block1 = blocks.get(block(address1)), block2 = blocks.get(block(address2));
+        int offset1 = offset(address1), offset2 = offset(address2);
+        int length1 = block1.getInt(offset1), length2 = block2.getInt(offset2);
+        if(length1 != length2) return length1 > length2 ? 1 : -1;
+        for(int k=1;k<=length1;k++) {
+            int m1 = block1.getInt(offset1 + 4*k), m2 = block2.getInt(offset2 + 4*k);
+            if(m1 != m2) return m1 > m2 ? 1 : -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Passes the chain whose record is at <b>address</b> to <b>visitor</b>.
+     * @return Size of the record
+     */
+    private int visitRecord(long address, int[] members, ChainVisitor visitor) {
+        ByteBuffer block = blocks.get(block(address));
+        int offset = offset(address);
+        int length = block.getInt(offset);
+        for(int k=0;k<length;k++) members[k] = block.getInt(offset + 4 + 4*k);
+        visitor.visit(members, length, block.getDouble(offset + 4 + 4*length));
+        return recordSize(length);
+    }
+
+    /**
+     * @return The chain whose record is at <b>address</b>
+     */
+    private CompactChain chainAt(long address) {
+        ByteBuffer block = blocks.get(block(address));
+        int offset = offset(address);
+        int[] members = new int[block.getInt(offset)];
+        for(int k=0;k<members.length;k++) members[k] = block.getInt(offset + 4 + 4*k);
+        return new CompactChain(matrix, members);
+    }
+
+    private static int recordSize(int length) {
+        return 4 + 4*length + 8;
+    }
+
+    private static int block(long address) {
+        return (int)(address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int)address;
+    }
+
+}
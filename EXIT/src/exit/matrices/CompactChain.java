@@ -0,0 +1,303 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <tt>CompactChain</tt> is an immutable impact chain of the variables of an <tt>EXITImpactMatrix</tt>
+ * stored in primitive form: the indices of its members in an <tt>int</tt> array
+ * and the set of its members in a bitmask,
+ * one <tt>long</tt> for variables with indices below 64 and more words for greater indices.
+ * Testing whether a variable is in the chain takes constant time,
+ * and testing whether two chains share variables takes one operation per 64 variables.
+ * <p>The relative impact of the chain is computed when the chain is created
+ * and cached with the impact of the chain without its last variable,
+ * so chains continued by one variable are created
+ * without walking through their members again.
+ * The impacts are those of the values of the matrix at that time.</p>
+ * <p><tt>ImpactChain</tt> is built on this class.</p>
+ * @author jmpaon
+ */
+public final class CompactChain implements Comparable<CompactChain> {
+
+    /** The cross-impact matrix whose variables the chain is formed from */
+    public final EXITImpactMatrix matrix;
+
+    /** Indices of the chain members, impactor first */
+    private final int[] members;
+    /** Members with indices 0..63 as bits of the same position */
+    private final long bits;
+    /** Members with indices 64 and greater, <i>null</i> if the matrix has less than 64 variables */
+    private final long[] moreBits;
+    /** Relative impact of the chain */
+    private final double impact;
+    /** Relative impact of the chain without its last member */
+    private final double prefixImpact;
+
+
+    /**
+     * @param matrix The cross-impact matrix whose variables the chain is formed from
+     * @param members The indices of the variables of the chain, impactor first.
+     * All indices must be present in <b>matrix</b> and appear only once.
+     */
+    public CompactChain(EXITImpactMatrix matrix, int... members) {
+        if(matrix == null) throw new NullPointerException("matrix is null");
+        this.matrix = matrix;
+        this.members = members == null ? new int[0] : members.clone();
+
+        long low = 0;
+        long[] high = matrix.getVarCount() < 64 ? null : new long[matrix.getVarCount() >>> 6];
+        double chainImpact = 1, withoutLast = 1;
+        for(int position=0;position<this.members.length;position++) {
+            int index = this.members[position];
+            if(index < 1 || index > matrix.getVarCount()) {
+                throw new IndexOutOfBoundsException(String.format("Chain member %d not present in impact matrix", index));
+            }
+            if(index < 64) {
+                if((low & 1L << index) != 0) throw new IllegalArgumentException("duplicate items in chainMembers");
+                low |= 1L << index;
+            } else {
+                if((high[(index >>> 6)-1] & 1L << index) != 0) throw new IllegalArgumentException("duplicate items in chainMembers");
+                high[(index >>> 6)-1] |= 1L << index;
+            }
+            if(position > 0) {
+                withoutLast = chainImpact;
+                chainImpact *= relativeImpact(this.members[position-1], index);
+            }
+        }
+        this.bits = low;
+        this.moreBits = high;
+        this.impact = chainImpact;
+        this.prefixImpact = withoutLast;
+    }
+
+    private CompactChain(EXITImpactMatrix matrix, int[] members, long bits, long[] moreBits, double impact, double prefixImpact) {
+        this.matrix = matrix;
+        this.members = members;
+        this.bits = bits;
+        this.moreBits = moreBits;
+        this.impact = impact;
+        this.prefixImpact = prefixImpact;
+    }
+
+
+    /**
+     * @return Number of variables in the chain
+     */
+    public int length() {
+        return members.length;
+    }
+
+    /**
+     * @param position 0-based position in the chain
+     * @return Index of the variable at <b>position</b>
+     */
+    public int member(int position) {
+        return members[position];
+    }
+
+    /**
+     * @return Indices of the variables of the chain, impactor first
+     */
+    public int[] members() {
+        return members.clone();
+    }
+
+    /**
+     * @return Unmodifiable view of the indices of the variables of the chain, impactor first
+     */
+    public List<Integer> asList() {
+        return new MemberList();
+    }
+
+    /**
+     * @return The index of the first (impactor) variable in the chain
+     */
+    public int impactorIndex() {
+        return members[0];
+    }
+
+    /**
+     * @return The index of the last (impacted) variable in the chain
+     */
+    public int impactedIndex() {
+        return members[members.length-1];
+    }
+
+    /**
+     * @param index Index of a variable
+     * @return <i>true</i> if the variable with <b>index</b> is in the chain
+     */
+    public boolean contains(int index) {
+        if(index < 0) return false;
+        if(index < 64) return (bits & 1L << index) != 0;
+        int word = (index >>> 6)-1;
+        return moreBits != null && word < moreBits.length && (moreBits[word] & 1L << index) != 0;
+    }
+
+    /**
+     * @param chain Another chain
+     * @return <i>true</i> if some variable is in both this chain and <b>chain</b>
+     */
+    public boolean sharesMembersWith(CompactChain chain) {
+        if((bits & chain.bits) != 0) return true;
+        if(moreBits == null || chain.moreBits == null) return false;
+        for(int w=0;w<Math.min(moreBits.length, chain.moreBits.length);w++) {
+            if((moreBits[w] & chain.moreBits[w]) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the relative impact of the first variable of the chain (impactor)
+     * on the last variable of the chain (impacted) through the chain,
+     * 1 if the chain has less than two variables.
+     * @return Relative impact of the chain
+     */
+    public double impact() {
+        return impact;
+    }
+
+
+    /**
+     * Returns the impact of the chain continued by the variable with <b>index</b>
+     * as the new impacted variable, without creating the chain.
+     * @param index Index of a variable not in the chain
+     * @return Relative impact of the continued chain
+     */
+    public double appendedImpact(int index) {
+        return members.length == 0 ? 1 : impact * relativeImpact(impactedIndex(), index);
+    }
+
+    /**
+     * @param index Index of a variable not in the chain
+     * @return Chain continued by the variable with <b>index</b> as the new impacted variable
+     */
+    public CompactChain appended(int index) {
+        int[] appended = Arrays.copyOf(members, members.length+1);
+        appended[members.length] = index;
+        return withMember(appended, index, appendedImpact(index), impact);
+    }
+
+    /**
+     * @param index Index of a variable not in the chain
+     * @return Chain continued by the variable with <b>index</b> as the last intermediary,
+     * placed before the impacted variable
+     */
+    public CompactChain insertedBeforeLast(int index) {
+        assert members.length > 1;
+        int last = members.length-1;
+        int[] inserted = Arrays.copyOf(members, members.length+1);
+        inserted[last] = index;
+        inserted[last+1] = members[last];
+        double insertedPrefixImpact = prefixImpact * relativeImpact(members[last-1], index);
+        return withMember(inserted, index, insertedPrefixImpact * relativeImpact(index, members[last]), insertedPrefixImpact);
+    }
+
+    /**
+     * @param chain Chain that has no variables in common with this chain
+     * @return Chain with the members of <b>chain</b> appended to the members of this chain
+     */
+    public CompactChain combinedWith(CompactChain chain) {
+        if(sharesMembersWith(chain)) throw new IllegalArgumentException("Duplicate indices in combined chains");
+        if(chain.members.length == 0) return this;
+        if(members.length == 0) return chain;
+        int[] combined = Arrays.copyOf(members, members.length + chain.members.length);
+        System.arraycopy(chain.members, 0, combined, members.length, chain.members.length);
+        double link = relativeImpact(impactedIndex(), chain.impactorIndex());
+        double combinedPrefixImpact = chain.members.length == 1 ? impact : impact * link * chain.prefixImpact;
+        long[] combinedMoreBits = moreBits == null ? null : moreBits.clone();
+        if(combinedMoreBits != null && chain.moreBits != null) {
+            for(int w=0;w<combinedMoreBits.length;w++) combinedMoreBits[w] |= chain.moreBits[w];
+        }
+        return new CompactChain(matrix, combined, bits | chain.bits, combinedMoreBits, impact * link * chain.impact, combinedPrefixImpact);
+    }
+
+
+    /**
+     * Returns the summed impact of the chains that are continued by one variable not in the chain
+     * placed before the impacted variable, without creating the chains.
+     * @return Summed impact of the chains continued by one intermediary
+     */
+    public double continuedByOneIntermediaryImpact() {
+        assert members.length > 1;
+        int last = members[members.length-2];
+        int impacted = impactedIndex();
+        double sum = 0;
+        for(int v=1;v<=matrix.getVarCount();v++) {
+            if(contains(v)) continue;
+            sum += relativeImpact(last, v) * relativeImpact(v, impacted);
+        }
+        return prefixImpact * sum;
+    }
+
+
+    /**
+     * Compares two chains.
+     * Shorter chains are ordered before longer chains.
+     * Equal-length chains are ordered by the member indices.
+     * @param chain <tt>CompactChain</tt> to compare against
+     * @return -1 if <b>chain</b> is greater, 0 if equal, 1 if smaller
+     */
+    @Override
+    public int compareTo(CompactChain chain) {
+        if(chain == null) return 1;
+        if(members.length != chain.members.length) return members.length > chain.members.length ? 1 : -1;
+        for(int position=0;position<members.length;position++) {
+            if(members[position] != chain.members[position]) return members[position] > chain.members[position] ? 1 : -1;
+        }
+        return 0;
+    }
+
+
+    /**
+     * Returns a chain with <b>members</b>, which are the members of this chain and <b>index</b>.
+     */
+    private CompactChain withMember(int[] members, int index, double impact, double prefixImpact) {
+        if(contains(index)) throw new IllegalArgumentException("duplicate items in chainMembers");
+        if(index < 1 || index > matrix.getVarCount()) {
+            throw new IndexOutOfBoundsException(String.format("Chain member %d not present in impact matrix", index));
+        }
+        if(index < 64) return new CompactChain(matrix, members, bits | 1L << index, moreBits, impact, prefixImpact);
+        long[] more = moreBits.clone();
+        more[(index >>> 6)-1] |= 1L << index;
+        return new CompactChain(matrix, members, bits, more, impact, prefixImpact);
+    }
+
+    /**
+     * @return Relative direct impact of <b>impactor</b> on <b>impacted</b>
+     */
+    private double relativeImpact(int impactor, int impacted) {
+        return matrix.freeze().impact(impactor-1, impacted-1);
+    }
+
+
+    /**
+     * Read-only list view of the members of the chain.
+     */
+    private final class MemberList extends AbstractList<Integer> implements RandomAccess {
+
+        @Override
+        public Integer get(int position) {
+            return members[position];
+        }
+
+        @Override
+        public int size() {
+            return members.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Integer && CompactChain.this.contains((Integer)o);
+        }
+    }
+
+}
@@ -6,6 +6,7 @@
 package exit.matrices;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
@@ -366,12 +367,12 @@ public class CrossImpactMatrix extends SquareMatrix{
      */
     public Map<Double, Integer> valueDistribution() {
         Map<Double, Integer> distribution = new TreeMap<>();
-        for(Double d : this.values) {
-            if( distribution.containsKey(d)) {
-                distribution.put(d, distribution.get(d) + 1);
-            } else {
-                distribution.put(d, 1);
-            }
+        double[] sortedValues = this.values.clone();
+        Arrays.sort(sortedValues);
+        for(int i=0, j; i<sortedValues.length; i=j) {
+            j = i+1;
+            while(j < sortedValues.length && Double.compare(sortedValues[i], sortedValues[j]) == 0) j++;
+            distribution.put(sortedValues[i], j-i);
         }
         return distribution;
     }
@@ -52,6 +52,9 @@ public final class EXITImpactMatrix extends CrossImpactMatrix {
     /** The maximum absolute value allowed in this matrix */
     private double maxImpact;
     
+    /** Snapshot of the relative impacts, <i>null</i> until needed and after a value is changed */
+    private FrozenImpactMatrix frozen;
+    
     /**
      * Constructor for <code>EXITImpactMatrix</code>.
      * @param maxImpact The maximum value allowed in the matrix
@@ -145,28 +148,29 @@ public final class EXITImpactMatrix extends CrossImpactMatrix {
      * Calculates the relative impact of all possible impact chains 
      * and returns a new <code>EXITImpactMatrix</code> that contains
      * the summed direct and indirect values between the variables.
+     * The chains are enumerated one by one, which is feasible only for small matrices;
+     * {@link exit.estimators.SubsetComputer} computes the same matrix
+     * for matrices of 20-25 variables.
      * @return CrossImpactMatrix : summed direct and indirect impacts between variables
      */
     public CrossImpactMatrix computeSummedImpactMatrix() {
         CrossImpactMatrix result = new CrossImpactMatrix(new SquareMatrix(this).copyWithoutValues());
+        ChainEnumerator enumerator = new ChainEnumerator(this);
+        double[] summedImpacts = new double[varCount+1];
         for(int impactor=1;impactor<=varCount;impactor++) {
+            Arrays.fill(summedImpacts, 0);
+            enumerator.enumerate(impactor, varCount, (chain, length, impact) -> {
+                summedImpacts[chain[length-1]] += impact;
+                return true;
+            });
             for(int impacted=1;impacted<=varCount;impacted++) {
                 if (impactor == impacted) continue;
-                ImpactChain chain = new ImpactChain(this, impactor, impacted);
-                result.setValue(impactor, impacted, computeExpansions(chain));
+                result.setValue(impactor, impacted, summedImpacts[impacted]);
             }
         }
         return result;
     }
     
-    private double computeExpansions(ImpactChain chain) {
-        double sum = chain.impact();
-        for(ImpactChain expansion : chain.continuedByOneIntermediary()) {
-            sum += computeExpansions(expansion);
-        }
-        return sum;
-    }
-    
     
     /**
      * Returns a String with information about 
@@ -267,6 +271,7 @@ public final class EXITImpactMatrix extends CrossImpactMatrix {
         }
         
         super.setValue(impactor, impacted, value);
+        frozen = null;
     }
     
     
@@ -280,6 +285,35 @@ public final class EXITImpactMatrix extends CrossImpactMatrix {
     }
     
     
+    /**
+     * Returns the relative direct impacts of this matrix,
+     * the impact values divided by <b>maxImpact</b>,
+     * in a 0-based flat array.
+     * @return double[] : relative impacts, impact of <i>i</i> on <i>j</i> at index <tt>(i-1) * varCount + (j-1)</tt>
+     */
+    public double[] relativeImpacts() {
+        return freeze().toArray();
+    }
+    
+    
+    /**
+     * Returns an immutable snapshot of the relative direct impacts of this matrix
+     * for the kernels that walk or sample impact chains.
+     * The snapshot is taken when first needed and returned again
+     * until a value of the matrix is changed,
+     * so the estimators of a matrix share the same snapshot.
+     * @return FrozenImpactMatrix : relative impacts of the current values of this matrix
+     */
+    public FrozenImpactMatrix freeze() {
+        FrozenImpactMatrix snapshot = frozen;
+        if(snapshot == null) {
+            snapshot = new FrozenImpactMatrix(varCount, values, maxImpact);
+            frozen = snapshot;
+        }
+        return snapshot;
+    }
+    
+    
     
     
     
@@ -23,25 +23,25 @@ public class EasyChainMatrix extends CrossImpactMatrix {
         super(sm);
     }
     
+    /**
+     * Returns the matrix product of this matrix and <b>colMatrix</b>
+     * with the diagonal set to 0, 
+     * as variables cannot have impact on themselves.
+     * @param colMatrix Right-hand matrix of the product
+     * @return double[] : values of the product matrix
+     */
     @Override
-    protected double multiplyEntries(int row, int col) {
-        return multiplyEntries(this, row, col);
-    }
-    
-    protected double multiplyEntries(SquareMatrix colMatrix, int row, int col) {
-        if(row == col) return 0;
-        return EasyChainMatrix.multiplyEntries(this, colMatrix, row, col);
+    protected double[] product(SquareMatrix colMatrix) {
+        double[] product = super.product(colMatrix);
+        for(int i=0;i<varCount;i++) product[i*varCount + i] = 0;
+        return product;
     }
     
     
     public EasyChainMatrix power(EasyChainMatrix m) {
         EasyChainMatrix powerMatrix = new EasyChainMatrix(this.copyWithoutValues());
-        
-        for (int row = 1; row <= varCount; row++) {
-            for (int col = 1; col <= varCount; col++) {
-                powerMatrix.setValue(row, col, this.multiplyEntries(m, row, col));
-            }
-        }
+        double[] product = this.product(m);
+        System.arraycopy(product, 0, powerMatrix.values, 0, product.length);
         return powerMatrix;
     }
     
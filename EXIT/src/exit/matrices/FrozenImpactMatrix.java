@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+/**
+ * <tt>FrozenImpactMatrix</tt> is an immutable snapshot of the relative direct impacts
+ * of an <tt>EXITImpactMatrix</tt>, the impact values already divided by the maximum impact,
+ * for the kernels that walk or sample impact chains.
+ * The impacts are held in a 0-based flat array row by row,
+ * and in a transposed copy column by column,
+ * so both the impacts of a variable and the impacts on a variable are contiguous in memory.
+ * <p>The accessors take 0-based indices and do not check them,
+ * unlike {@link SquareMatrix#getValue(int, int)}:
+ * the kernels using them visit only valid indices.
+ * The snapshot does not change when the matrix it was taken from is changed,
+ * and as its arrays are never written after construction,
+ * it can be shared between threads without copying or synchronization.
+ * {@link EXITImpactMatrix#freeze()} returns the snapshot of a matrix.</p>
+ * @author jmpaon
+ */
+public final class FrozenImpactMatrix {
+
+    /** Number of variables */
+    final int varCount;
+    /** Relative direct impacts, impact of <i>i</i> on <i>j</i> at index <tt>i * varCount + j</tt> (0-based) */
+    final double[] impacts;
+    /** Relative direct impacts, impact of <i>i</i> on <i>j</i> at index <tt>j * varCount + i</tt> (0-based) */
+    final double[] transposed;
+
+
+    /**
+     * @param varCount Number of variables
+     * @param values Impact values in a 0-based flat array, row by row
+     * @param maxImpact Maximum impact by which the values are divided
+     */
+    FrozenImpactMatrix(int varCount, double[] values, double maxImpact) {
+        assert values.length == varCount*varCount && maxImpact > 0;
+        this.varCount = varCount;
+        this.impacts = new double[values.length];
+        this.transposed = new double[values.length];
+        for(int i=0;i<varCount;i++) {
+            for(int j=0;j<varCount;j++) {
+                double impact = values[i*varCount + j] / maxImpact;
+                impacts[i*varCount + j] = impact;
+                transposed[j*varCount + i] = impact;
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of variables in the matrix
+     */
+    public int getVarCount() {
+        return varCount;
+    }
+
+    /**
+     * Returns the relative direct impact of <b>impactor</b> on <b>impacted</b>.
+     * @param impactor 0-based index of impactor variable
+     * @param impacted 0-based index of impacted variable
+     * @return double : relative direct impact
+     */
+    public double impact(int impactor, int impacted) {
+        return impacts[impactor*varCount + impacted];
+    }
+
+    /**
+     * Returns the relative direct impact of <b>impactor</b> on <b>impacted</b>
+     * from the transposed copy, for walking through the impacts on a variable.
+     * @param impacted 0-based index of impacted variable
+     * @param impactor 0-based index of impactor variable
+     * @return double : relative direct impact
+     */
+    public double impactOn(int impacted, int impactor) {
+        return transposed[impacted*varCount + impactor];
+    }
+
+    /**
+     * Returns the relative impact of the chain of the first <b>length</b> variables of <b>members</b>.
+     * @param members Indices of the variables of the chain, impactor first, 1-based as in <tt>ImpactChain</tt>
+     * @param length Number of variables in the chain
+     * @return double : relative impact of the chain, 1 if the chain has less than two variables
+     */
+    public double chainImpact(int[] members, int length) {
+        double impact = 1;
+        for(int position=1;position<length;position++) {
+            impact *= impacts[(members[position-1]-1)*varCount + members[position]-1];
+        }
+        return impact;
+    }
+
+    /**
+     * @return Relative direct impacts in a new 0-based flat array,
+     * impact of <i>i</i> on <i>j</i> at index <tt>(i-1) * varCount + (j-1)</tt>
+     */
+    public double[] toArray() {
+        return impacts.clone();
+    }
+
+}
@@ -6,13 +6,11 @@
 package exit.matrices;
 
 import exit.estimators.ImpactChainSampler;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
 
 
 /**
@@ -24,6 +22,8 @@ import java.util.LinkedList;
  * on the <i>impacted</i> variable, through the chain of intermediary variables
  * between <i>impactor</i> and <i>impacted</i>. 
  * In a direct impact, there are no intermediary variables.
+ * The chain is stored as a {@link CompactChain}, 
+ * so membership tests take constant time and the impact is computed only once.
  * @author jmpaon
  */
 public class ImpactChain implements Comparable<ImpactChain>  {
@@ -31,9 +31,12 @@ public class ImpactChain implements Comparable<ImpactChain>  {
     /** The cross-impact matrix from whose variables the impact chain is formed from */
     public final EXITImpactMatrix matrix;
     
-    /** Indices of the variables that are present in this chain */
+    /** Indices of the variables that are present in this chain, as an unmodifiable list */
     public final List<Integer> chainMembers;
     
+    /** Members and impact of this chain in primitive form */
+    private final CompactChain compact;
+    
     /** Number of chain members / variables in this chain */
     public final int memberCount;
     
@@ -45,26 +48,7 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * All indices must be present in <b>matrix</b>.
      */
     public ImpactChain(EXITImpactMatrix matrix, List<Integer> chainMembers) {
-        if(matrix == null) throw new NullPointerException("matrix is null");
-        this.matrix = matrix;
-        if(chainMembers == null) {
-            this.chainMembers = new LinkedList();
-        } else {
-            
-            // Test chainMembers for duplicates
-            Set<Integer> woDuplicates = new TreeSet<>(chainMembers);
-            if(woDuplicates.size() != chainMembers.size()) { throw new IllegalArgumentException("duplicate items in chainMembers"); }
-            
-            // Test that indices in chainMembers are present in matrix of this impactChain
-            for(Integer i : chainMembers) {
-                if(i < 0 || i > matrix.getVarCount()) {
-                    throw new IndexOutOfBoundsException("Chain member " +chainMembers.get(i)+ " not present in impact matrix");
-                }
-            }
-            this.chainMembers = chainMembers;
-        }
-        
-        this.memberCount = this.chainMembers.size();
+        this(new CompactChain(matrix, chainMembers == null ? null : chainMembers.stream().mapToInt(Integer::intValue).toArray()));
     }
     
     
@@ -75,26 +59,18 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * All indices must be present in <b>matrix</b>.
      */
     public ImpactChain(EXITImpactMatrix matrix, int... chainMembers) {
-        if(matrix == null) throw new NullPointerException("matrix is null");
-        this.matrix = matrix;
-        if(chainMembers == null || chainMembers.length == 0) {
-            this.chainMembers = new LinkedList();
-        } else {
-            // Test chainMembers for duplicates
-            List<Integer> list = new LinkedList<>();
-            for(int i : chainMembers) {list.add(i);}
-            Set<Integer> woDuplicates = new TreeSet<>(list);
-            if(woDuplicates.size() != list.size()) { throw new IllegalArgumentException("duplicate items in chainMembers"); }
-            
-            // Test that indices in chainMembers are present in matrix of this impactChain
-            for(Integer i : chainMembers) {
-                if(i < 0 || i > matrix.getVarCount()) {
-                    throw new IndexOutOfBoundsException(String.format("Chain member %d not present in impact matrix", i));
-                }
-            }
-            this.chainMembers = list;
-        }
-        this.memberCount = this.chainMembers.size();
+        this(new CompactChain(matrix, chainMembers));
+    }
+    
+    
+    /**
+     * @param compact The members of the chain in primitive form
+     */
+    public ImpactChain(CompactChain compact) {
+        this.matrix = compact.matrix;
+        this.compact = compact;
+        this.chainMembers = compact.asList();
+        this.memberCount = compact.length();
     }
     
     
@@ -109,23 +85,30 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @param impactorIndex Index of impactor variable of the returned chain
      * @param impactedIndex Index of impacted variable of the returned chain
      * @param totalLength Total totalLength of the returned chain
+     * @param random Source of randomness used to pick the intermediary variables
      * @return Impact chain with randomly picked <u>intermediary</u> variables and defined <u>impactor</u> and <u>impacted</u> variables.
      */
-    public static ImpactChain randomChain(EXITImpactMatrix matrix, int impactorIndex, int impactedIndex, int totalLength) {
+    public static ImpactChain randomChain(EXITImpactMatrix matrix, int impactorIndex, int impactedIndex, int totalLength, SplittableRandom random) {
         assert matrix.isIndexValid(impactorIndex);
         assert matrix.isIndexValid(impactedIndex);
         assert totalLength > 1 : "Chain length > 1 required; length is " + totalLength;
         assert totalLength <= matrix.getVarCount() : "length is " + totalLength;
-        totalLength -= 2;
-        List<Integer> chainMembers = new ArrayList<>();
-        List<Integer> l = intermediaryIndices(matrix, impactorIndex, impactedIndex);
-        int i = 0;
-        Collections.shuffle(l);
-        chainMembers.add(impactorIndex);
-        while (totalLength-- > 0) {
-            chainMembers.add(l.get(i++));
+        int[] available = new int[matrix.getVarCount()-2];
+        for(int v=1, i=0; v<=matrix.getVarCount(); v++) {
+            if(v != impactorIndex && v != impactedIndex) available[i++] = v;
+        }
+        
+        /* Partial Fisher-Yates shuffle of the positions that are needed */
+        int[] chainMembers = new int[totalLength];
+        chainMembers[0] = impactorIndex;
+        for(int position=0; position<totalLength-2; position++) {
+            int picked = position + random.nextInt(available.length - position);
+            int v = available[picked];
+            available[picked] = available[position];
+            available[position] = v;
+            chainMembers[position+1] = v;
         }
-        chainMembers.add(impactedIndex);
+        chainMembers[totalLength-1] = impactedIndex;
         return new ImpactChain(matrix, chainMembers);
     }
     
@@ -135,23 +118,12 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * and the intermediary variables are randomly picked variables from 
      * yet available variables in the matrix
      * @param totalLength Total length (including impactor and impacted variables) of the chain
+     * @param random Source of randomness used to pick the intermediary variables
      * @return ImpactChain
      */
-    public ImpactChain randomChain(int totalLength) {
+    public ImpactChain randomChain(int totalLength, SplittableRandom random) {
         assert totalLength > 1 && totalLength <= this.memberCount : String.format("Requested length is %d, creating chain is of length %d", totalLength, this.memberCount);
-        return ImpactChain.randomChain(matrix, this.impactorIndex(), this.impactedIndex(), totalLength);
-    }
-    
-    
-    /**
-     * Returns a list of possible indices of intermediary variables for chain generation for <b>matrix</b>.
-     * @param impactorIndex Index of impactor variable of the chain
-     * @param impactedIndex Index of impacted variable of the chain
-     * @return List&lt;Integer&gt; : possible intermediary indices between impactor and impacted 
-     */    
-    static List<Integer> intermediaryIndices(EXITImpactMatrix matrix, int impactorIndex, int impactedIndex) {
-        assert matrix.isIndexValid(impactorIndex) && matrix.isIndexValid(impactedIndex);
-        return new ArrayList<>(new ImpactChain(matrix, impactorIndex, impactedIndex).expandableBy());
+        return ImpactChain.randomChain(matrix, this.impactorIndex(), this.impactedIndex(), totalLength, random);
     }
     
     
@@ -164,14 +136,8 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @return Combined <code>ImpactChain</code>
      */
     public ImpactChain combineWith(ImpactChain chain) {
-        if(! this.matrix.equals(chain.matrix)) throw new IllegalArgumentException("Combined chains refer to different matrices");
-        for(Integer i : chain.chainMembers) {
-            if(this.chainMembers.contains(i)) throw new IllegalArgumentException("Duplicate indices in combined chains");
-        }
-        List<Integer> combinedMembers = new LinkedList<>();
-        combinedMembers.addAll(this.chainMembers);
-        combinedMembers.addAll(chain.chainMembers);
-        return new ImpactChain(this.matrix, combinedMembers);
+        if(! isSameMatrix(chain)) throw new IllegalArgumentException("Combined chains refer to different matrices");
+        return new ImpactChain(compact.combinedWith(chain.compact));
     }
     
     
@@ -183,11 +149,20 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @return <i>true</i> if chains can be combined, false otherwise
      */
     public boolean isCombinableWith(ImpactChain chain) {
-        if(! this.matrix.equals(chain.matrix)) return false;
-        for(Integer i : chain.chainMembers) {
-            if(this.chainMembers.contains(i)) return false;
-        }
-        return true;
+        return isSameMatrix(chain) && !compact.sharesMembersWith(chain.compact);
+    }
+    
+    
+    private boolean isSameMatrix(ImpactChain chain) {
+        return this.matrix == chain.matrix || this.matrix.equals(chain.matrix);
+    }
+    
+    
+    /**
+     * @return The members and impact of this chain in primitive form
+     */
+    public CompactChain compact() {
+        return compact;
     }
     
     
@@ -196,14 +171,14 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @return The index of the last (impacted) variable in the chain
      */
     public int impactedIndex() {
-        return chainMembers.get(memberCount-1);
+        return compact.impactedIndex();
     }
     
     /**
      * @return The index of the first (impactor) variable in the chain
      */
     public int impactorIndex() {
-        return chainMembers.get(0);
+        return compact.impactorIndex();
     }
     
     
@@ -211,7 +186,7 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @return The name of the last (impacted) variable in the chain
      */
     public String impactedName() {
-        return matrix.getName(chainMembers.get(memberCount-1));
+        return matrix.getName(compact.impactedIndex());
     }
     
     
@@ -219,7 +194,7 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @return The name of the first (impactor) variable in the chain
      */
     public String impactorName() {
-        return matrix.getName(chainMembers.get(0));
+        return matrix.getName(compact.impactorIndex());
     }
     
     
@@ -236,22 +211,20 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * @return The effect of first variable on the last variable, through the intermediary variables in the chain
      */
     public double impact() {
-        return impact(chainMembers);
+        return compact.impact();
     }
     
     
     /**
-     * Calculates the impact of the impactor on the impacted through the 
-     * intermediary variables in <code>chain</code>.
-     * @param chain List containing indices of the variables in the chain whose impact is calculated
-     * @return The impact of first variable in the chain on the last variable of the chain trough the chain
-     * @see ImpactChain#impact()
+     * Returns the summed impact of the chains that are one variable longer than this chain,
+     * continued by any variable not present in the chain
+     * placed before the impacted variable
+     * (the chains returned by {@link ImpactChain#continuedByOneIntermediary()}),
+     * without creating the chains.
+     * @return Summed impact of the chains continued by one intermediary
      */
-    private double impact(List<Integer> chain)  {
-        if(chain == null) { throw new NullPointerException("chain argument is null"); }
-        if(chain.isEmpty()) return 1;
-        if(chain.size()==1) return 1;
-        return (matrix.getValue(chain.get(0),chain.get(1))/matrix.getMaxImpact()) * impact(chain.subList(1, chain.size()));
+    public double continuedByOneIntermediaryImpact() {
+        return compact.continuedByOneIntermediaryImpact();
     }
     
     
@@ -266,15 +239,9 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      */
     public Set<ImpactChain> continuedByOne()  {
         Set<ImpactChain> continued = new TreeSet<>();
-        Set<Integer> notIncluded = expandableBy();
-        
-        for(Integer i : notIncluded) {
-            List cm = new LinkedList(chainMembers);
-            cm.add(i);
-            ImpactChain c = new ImpactChain(this.matrix, cm);
-            continued.add(c);
+        for(int i = 1; i <= matrix.getVarCount(); i++) {
+            if(! compact.contains(i)) continued.add(new ImpactChain(compact.appended(i)));
         }
-        
         return continued;
         
     }
@@ -299,14 +266,9 @@ public class ImpactChain implements Comparable<ImpactChain>  {
         }
         
         Set<ImpactChain> continued = new TreeSet<>();
-        Set<Integer> notIncluded = expandableBy();
-        for(Integer i : notIncluded) {
-            List cm = new LinkedList(chainMembers);
-            cm.add(cm.size()-1, i);
-            ImpactChain c = new ImpactChain(this.matrix, cm);
-            continued.add(c);
+        for(int i = 1; i <= matrix.getVarCount(); i++) {
+            if(! compact.contains(i)) continued.add(new ImpactChain(compact.insertedBeforeLast(i)));
         }
-        
         return continued;
     }
     
@@ -318,6 +280,8 @@ public class ImpactChain implements Comparable<ImpactChain>  {
      * than <code>impactTreshold</code>).
      * This method generates chains by adding variables to the end of the chain,
      * as impacted variable.
+     * The impact of each expansion is the cached impact of its parent times one direct impact,
+     * and expansions below the threshold are not created at all.
      * @param impactTreshold The minimum impact a chain should have to be included in the returned chain;
      * must be greater than 0 and smaller than 1
      * @return All impact chains expanded from this chain that have higher <code>impact</code> than threshold.
@@ -326,46 +290,53 @@ public class ImpactChain implements Comparable<ImpactChain>  {
         if(impactTreshold <=0 || impactTreshold >=1) throw new IllegalArgumentException("impactTreshold should be in range ]0..1[");
         
         Set<ImpactChain> chains = new TreeSet<>();
-        
-        if(Math.abs(this.impact()) >= impactTreshold) {
-            
-            if(this.memberCount > 0) chains.add(this);
-            
-            Set<ImpactChain> immediateExpansions = this.continuedByOne();
-            for(ImpactChain ic : immediateExpansions) {
-                chains.addAll(ic.highImpactChains(impactTreshold));
-            }
-        }
-        
+        if(Math.abs(this.impact()) >= impactTreshold) addHighImpactChains(compact, impactTreshold, c -> chains.add(new ImpactChain(c)));
         return chains;
     }    
     
-
+    
     /**
-     * @return <b>true</b> if this chain can be expanded, false otherwise
+     * Generates the same chains as {@link ImpactChain#highImpactChains(double)},
+     * but adds them to <b>store</b> instead of a <code>Set</code>,
+     * so that millions of chains can be kept outside the heap.
+     * The chains are added in depth-first order; 
+     * {@link ChainStore#sortedIterator()} returns them in the order of the <code>Set</code>.
+     * @param impactTreshold The minimum impact a chain should have to be included;
+     * must be greater than 0 and smaller than 1
+     * @param store <code>ChainStore</code> of the matrix of this chain
+     * @return <b>store</b>
      */
-    public boolean hasExpansion() {
-        return !expandableBy().isEmpty();
+    public ChainStore highImpactChains(double impactTreshold, ChainStore store)  {
+        if(impactTreshold <=0 || impactTreshold >=1) throw new IllegalArgumentException("impactTreshold should be in range ]0..1[");
+        if(! matrix.equals(store.matrix)) throw new IllegalArgumentException("Chain store refers to a different matrix");
+        if(Math.abs(this.impact()) >= impactTreshold) addHighImpactChains(compact, impactTreshold, store::add);
+        return store;
     }
     
     
     /**
-     * Returns a <code>Set</code> containing 
-     * the variable indices in <code>matrix</code> 
-     * that are not present in this <code>ImpactChain</code>
-     * @return <code>Set</code> with variable indices not included in this <code>ImpactChain</code>
+     * Passes <b>chain</b>, which is a high-impact chain, 
+     * and its high-impact expansions to <b>chains</b>.
      */
-    private Set<Integer> expandableBy() {
-        Set<Integer> notInThisChain = new TreeSet<>();
-        for(int i = 1; i <= matrix.getVarCount() ; i++ ) {
-            if(! chainMembers.contains(i)) {
-                notInThisChain.add(i);
+    private static void addHighImpactChains(CompactChain chain, double impactTreshold, Consumer<CompactChain> chains) {
+        if(chain.length() > 0) chains.accept(chain);
+        for(int i = 1; i <= chain.matrix.getVarCount(); i++) {
+            if(! chain.contains(i) && Math.abs(chain.appendedImpact(i)) >= impactTreshold) {
+                addHighImpactChains(chain.appended(i), impactTreshold, chains);
             }
         }
-        return notInThisChain;
+    }
+    
+
+    /**
+     * @return <b>true</b> if this chain can be expanded, false otherwise
+     */
+    public boolean hasExpansion() {
+        return memberCount < matrix.getVarCount();
     }
     
     
+    
     /**
      * @return String representation of the impact chain, using long variable names.
      */
@@ -407,15 +378,7 @@ public class ImpactChain implements Comparable<ImpactChain>  {
     @Override
     public int compareTo(ImpactChain ic) {
         if(ic == null) return 1;
-        if(this.memberCount > ic.memberCount) return 1;
-        if(this.memberCount < ic.memberCount) return -1;
-        Iterator<Integer> i_this = this.chainMembers.iterator(), i_ic = ic.chainMembers.iterator();
-        while(i_this.hasNext() && i_ic.hasNext()) {
-            int i1 = i_this.next(), i2 = i_ic.next();
-            if(i1 > i2) return  1;
-            if(i1 < i2) return -1;
-        }
-        return 0;
+        return this.compact.compareTo(ic.compact);
     }
     
     
@@ -0,0 +1,234 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * <tt>RandomChainGenerator</tt> draws random impact chains of an <tt>EXITImpactMatrix</tt>
+ * and returns their relative impacts without creating any objects per chain.
+ * The possible intermediary variables are kept in an <code>int[]</code> pool
+ * that is reused from one chain to the next;
+ * the intermediaries of a chain are picked with a partial Fisher-Yates shuffle
+ * of only as many positions of the pool as the chain has intermediaries,
+ * and the relative impact of the chain is multiplied together as they are picked.
+ * Chains drawn with the same random numbers after {@link RandomChainGenerator#reset()} are the same.
+ * <p>An instance holds the pool of one sampling thread
+ * and must not be used by several threads at the same time;
+ * {@link RandomChainGenerator#copy()} returns a generator for another thread.</p>
+ * @author jmpaon
+ */
+public final class RandomChainGenerator {
+
+    /** Number of variables in the sampled matrix */
+    private final int varCount;
+    /** Relative direct impacts, shared with the <tt>FrozenImpactMatrix</tt> */
+    private final FrozenImpactMatrix impacts;
+    /** Relative direct impacts in a 0-based flat array, row by row */
+    private final double[] weights;
+    /** Relative direct impacts in a 0-based flat array, column by column */
+    private final double[] transposed;
+    /**
+     * Possible intermediary variables (0-based) of chains
+     * between <b>impactor</b> and <b>impacted</b>, in the order left by previous shuffles
+     */
+    private final int[] pool;
+    /** 0-based impactor and impacted variables of the chains the pool is built for */
+    private int impactor = -1, impacted = -1;
+
+
+    /**
+     * Constructor
+     * @param matrix <tt>EXITImpactMatrix</tt> whose impact chains are sampled
+     */
+    public RandomChainGenerator(EXITImpactMatrix matrix) {
+        this(matrix.freeze());
+    }
+
+    /**
+     * Constructor
+     * @param impacts Relative impacts of the matrix whose impact chains are sampled
+     */
+    public RandomChainGenerator(FrozenImpactMatrix impacts) {
+        this.impacts = impacts;
+        this.varCount = impacts.varCount;
+        this.weights = impacts.impacts;
+        this.transposed = impacts.transposed;
+        this.pool = new int[Math.max(varCount-2, 0)];
+    }
+
+
+    /**
+     * Returns a new generator for the same matrix,
+     * sharing the relative impacts of this generator
+     * but having its own pool of intermediaries.
+     * @return RandomChainGenerator
+     */
+    public RandomChainGenerator copy() {
+        return new RandomChainGenerator(impacts);
+    }
+
+
+    /**
+     * Returns the pool of intermediaries to its initial order.
+     * The chains drawn after a reset depend only on the random numbers used to draw them,
+     * not on the chains this generator has drawn before.
+     */
+    public void reset() {
+        impactor = impacted = -1;
+    }
+
+
+    /**
+     * Draws a chain of <b>length</b> variables from <b>impactorIndex</b> to <b>impactedIndex</b>
+     * with intermediaries picked uniformly at random without replacement,
+     * and returns its relative impact.
+     * Picking stops early if the impact of the chain becomes 0.
+     * @param impactorIndex Index of the impactor variable
+     * @param impactedIndex Index of the impacted variable
+     * @param length Number of variables in the chain, including impactor and impacted
+     * @param random Source of randomness
+     * @return double : relative impact of the drawn chain
+     */
+    public double randomChainImpact(int impactorIndex, int impactedIndex, int length, SplittableRandom random) {
+        assert impactorIndex != impactedIndex;
+        assert length > 1 && length <= varCount;
+        usePool(impactorIndex-1, impactedIndex-1);
+
+        final int available = pool.length;
+        int last = impactor;
+        double impact = 1;
+        for(int position=0; position<length-2; position++) {
+            int picked = position + random.nextInt(available - position);
+            int v = pool[picked];
+            pool[picked] = pool[position];
+            pool[position] = v;
+            impact *= weights[last*varCount + v];
+            if(impact == 0) return 0;
+            last = v;
+        }
+        return impact * weights[last*varCount + impacted];
+    }
+
+
+    /**
+     * Draws a chain of <b>maxLength</b> variables from <b>impactorIndex</b> to <b>impactedIndex</b>
+     * with intermediaries picked uniformly at random without replacement,
+     * and puts the relative impacts of its prefixes followed by the impacted variable
+     * into <b>impacts</b>.
+     * As the intermediaries are in a uniformly random order,
+     * the first <i>k</i> of them make a uniformly random chain of <i>k</i>+2 variables,
+     * so one draw gives a random chain of each length from <b>minLength</b> to <b>maxLength</b>.
+     * Picking stops early if the impact of the prefix becomes 0.
+     * @param impactorIndex Index of the impactor variable
+     * @param impactedIndex Index of the impacted variable
+     * @param minLength Length of the shortest chain whose impact is returned, at least 3
+     * @param maxLength Length of the longest chain whose impact is returned
+     * @param random Source of randomness
+     * @param impacts Array for the relative impacts:
+     * the impact of the chain of length <i>l</i> is put at index <i>l</i> - <b>minLength</b>
+     */
+    public void randomPrefixImpacts(int impactorIndex, int impactedIndex, int minLength, int maxLength, SplittableRandom random, double[] impacts) {
+        randomPrefixImpacts(impactorIndex, impactedIndex, minLength, maxLength, false, random, impacts);
+    }
+
+
+    /**
+     * Like {@link RandomChainGenerator#randomPrefixImpacts(int, int, int, int, java.util.SplittableRandom, double[])},
+     * but if <b>sumLastHop</b> is <i>true</i>, the last intermediary of each chain is not drawn:
+     * instead, the impact given for chains of length <i>l</i> is the summed impact 
+     * of all chains that continue the drawn prefix of <i>l</i>-3 intermediaries
+     * with any of the remaining variables as the last intermediary.
+     * The sum is the expected impact of the chain given its prefix, 
+     * times the number of remaining variables,
+     * so the summed impacts have less variance than the impacts of single chains;
+     * to estimate the summed impact of all chains of length <i>l</i>,
+     * they are multiplied by the number of prefixes of <i>l</i>-3 intermediaries
+     * instead of the number of chains.
+     * The sum costs O(<i>n</i>) for each chain length.
+     * @param impactorIndex Index of the impactor variable
+     * @param impactedIndex Index of the impacted variable
+     * @param minLength Length of the shortest chain whose impact is returned, at least 3
+     * @param maxLength Length of the longest chain whose impact is returned
+     * @param sumLastHop If <i>true</i>, the last intermediaries are summed over instead of drawn
+     * @param random Source of randomness
+     * @param impacts Array for the relative impacts:
+     * the impact of the chain of length <i>l</i> is put at index <i>l</i> - <b>minLength</b>
+     */
+    public void randomPrefixImpacts(int impactorIndex, int impactedIndex, int minLength, int maxLength, boolean sumLastHop, SplittableRandom random, double[] impacts) {
+        assert impactorIndex != impactedIndex;
+        assert minLength > 2 && minLength <= maxLength && maxLength <= varCount;
+        assert impacts.length > maxLength - minLength;
+        usePool(impactorIndex-1, impactedIndex-1);
+
+        final int available = pool.length;
+        int last = impactor;
+        double prefix = 1;
+        if(sumLastHop) {
+            for(int position=0; ; position++) {
+                int length = position + 3;
+                if(length >= minLength) impacts[length-minLength] = prefix * lastHopSum(last, position);
+                if(length == maxLength) return;
+                int picked = position + random.nextInt(available - position);
+                int v = pool[picked];
+                pool[picked] = pool[position];
+                pool[position] = v;
+                prefix *= weights[last*varCount + v];
+                last = v;
+                if(prefix == 0) {
+                    Arrays.fill(impacts, Math.max(length+1-minLength, 0), maxLength-minLength+1, 0);
+                    return;
+                }
+            }
+        }
+        for(int position=0; position<maxLength-2; position++) {
+            int picked = position + random.nextInt(available - position);
+            int v = pool[picked];
+            pool[picked] = pool[position];
+            pool[position] = v;
+            prefix *= weights[last*varCount + v];
+            last = v;
+            int length = position + 3;
+            if(length >= minLength) impacts[length-minLength] = prefix * weights[v*varCount + impacted];
+            if(prefix == 0) {
+                Arrays.fill(impacts, Math.max(length+1-minLength, 0), maxLength-minLength+1, 0);
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the summed impact of <b>last</b> on the impacted variable 
+     * through each variable in the pool from position <b>from</b> on.
+     */
+    private double lastHopSum(int last, int from) {
+        final int row = last*varCount;
+        final int column = impacted*varCount;
+        double sum = 0;
+        for(int p=from; p<pool.length; p++) {
+            int v = pool[p];
+            sum += weights[row + v] * transposed[column + v];
+        }
+        return sum;
+    }
+
+
+    /**
+     * Fills the pool with the variables other than <b>impactor</b> and <b>impacted</b>,
+     * unless it already holds them.
+     */
+    private void usePool(int impactor, int impacted) {
+        if(impactor == this.impactor && impacted == this.impacted) return;
+        for(int v=0, i=0; v<varCount; v++) {
+            if(v != impactor && v != impacted) pool[i++] = v;
+        }
+        this.impactor = impactor;
+        this.impacted = impacted;
+    }
+
+}
@@ -9,6 +9,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.ThreadLocalRandom;
 
 
@@ -27,6 +28,19 @@ public class RandomInputMatrixGenerator {
      * @return <tt>CrossImpactMatrix</tt> with random contents
      */
     public static CrossImpactMatrix generateCrossImpactMatrix(int varCount, double impactProbability, double greatestImpact) {
+        return generateCrossImpactMatrix(varCount, impactProbability, greatestImpact, new SplittableRandom());
+    }
+    
+    /**
+     * Returns a new <tt>CrossImpactMatrix</tt> filled with random values drawn from <b>random</b>.
+     * A <b>random</b> created with the same seed always gives the same matrix.
+     * @param varCount The number of variables in the returned matrix
+     * @param impactProbability The probability of a matrix entry to have an impact; range [0..1]
+     * @param greatestImpact Greatest possible absolute impact that the random values can have
+     * @param random Source of randomness
+     * @return <tt>CrossImpactMatrix</tt> with random contents
+     */
+    public static CrossImpactMatrix generateCrossImpactMatrix(int varCount, double impactProbability, double greatestImpact, SplittableRandom random) {
         assert varCount > 1;
         assert impactProbability >= 0 && impactProbability <= 1;
         assert greatestImpact > 0;
@@ -34,9 +48,9 @@ public class RandomInputMatrixGenerator {
         
         for(int impactor=1;impactor<=matrix.varCount;impactor++)
             for(int impacted=1;impacted<=matrix.varCount;impacted++) {
-                if(impactor != impacted && Math.random() >= impactProbability) {
-                    double newValue = Math.random() * greatestImpact;
-                    newValue = Math.random() > 0.5? newValue : -newValue;
+                if(impactor != impacted && random.nextDouble() >= impactProbability) {
+                    double newValue = random.nextDouble() * greatestImpact;
+                    newValue = random.nextDouble() > 0.5? newValue : -newValue;
                     matrix.setValue(impactor, impacted, newValue);
                 }
             }
@@ -79,8 +93,21 @@ public class RandomInputMatrixGenerator {
      * @return 
      */
     public static EXITImpactMatrix generateEXITImpactMatrix(int varCount, double impactProbability, double greatestImpact, double maxImpact) {
+        return generateEXITImpactMatrix(varCount, impactProbability, greatestImpact, maxImpact, new SplittableRandom());
+    }
+    
+    /**
+     * Returns a new <tt>EXITImpactMatrix</tt> with random content drawn from <b>random</b>.
+     * @param varCount Number of variables in the matrix
+     * @param impactProbability The probability of a matrix entry to have an impact; range [0..1]
+     * @param greatestImpact Greatest possible absolute impact that the random values can have
+     * @param maxImpact The maximum allowed impact value of EXIT impact matrix
+     * @param random Source of randomness
+     * @return EXITImpactMatrix
+     */
+    public static EXITImpactMatrix generateEXITImpactMatrix(int varCount, double impactProbability, double greatestImpact, double maxImpact, SplittableRandom random) {
         assert greatestImpact <= maxImpact;
-        return new EXITImpactMatrix(generateCrossImpactMatrix(varCount, impactProbability, greatestImpact), maxImpact);
+        return new EXITImpactMatrix(generateCrossImpactMatrix(varCount, impactProbability, greatestImpact, random), maxImpact);
     }
     
     /**
@@ -96,16 +123,32 @@ public class RandomInputMatrixGenerator {
      * @return EXITImpactMatrix
      */
     public static EXITImpactMatrix generateEXITImpactMatrix(int varCount, double impactProbability, double greatestImpact, double maxImpact, int strongChainCount) {
+        return generateEXITImpactMatrix(varCount, impactProbability, greatestImpact, maxImpact, strongChainCount, new SplittableRandom());
+    }
+    
+    /**
+     * Returns a new <tt>EXITImpactMatrix</tt> with random content drawn from <b>random</b> and 
+     * <b>strongChainCount</b> cases of impact chains where each link in the chain
+     * has impact equal to <b>greatestImpact</b>.
+     * @param varCount Number of variables in the matrix
+     * @param impactProbability The probability of a matrix entry to have an impact; range [0..1]
+     * @param greatestImpact Greatest possible absolute impact that the random values can have
+     * @param maxImpact The maximum allowed impact value of EXIT impact matrix
+     * @param strongChainCount Number of 'strong' impact chains
+     * @param random Source of randomness
+     * @return EXITImpactMatrix
+     */
+    public static EXITImpactMatrix generateEXITImpactMatrix(int varCount, double impactProbability, double greatestImpact, double maxImpact, int strongChainCount, SplittableRandom random) {
         assert strongChainCount < (varCount*(varCount-1)) : "There should be less 'strong chains' than directed variable pairs"; 
-        EXITImpactMatrix matrix = generateEXITImpactMatrix(varCount, impactProbability, greatestImpact, maxImpact);
+        EXITImpactMatrix matrix = generateEXITImpactMatrix(varCount, impactProbability, greatestImpact, maxImpact, random);
         
         while(strongChainCount-- > 0) {
-            int impactor = randBetween(1, matrix.getVarCount());
-            int impacted = impactor; while(impacted == impactor) impacted = randBetween(1, matrix.getVarCount());
-            int length = randBetween(2, matrix.getVarCount());
+            int impactor = randBetween(1, matrix.getVarCount(), random);
+            int impacted = impactor; while(impacted == impactor) impacted = randBetween(1, matrix.getVarCount(), random);
+            int length = randBetween(2, matrix.getVarCount(), random);
             
             /* Place a strong impact chain into matrix */
-            ImpactChain ic = ImpactChain.randomChain(matrix, impactor, impacted, length);
+            ImpactChain ic = ImpactChain.randomChain(matrix, impactor, impacted, length, random);
             for(int pos=1; pos < ic.memberCount; pos++) {
                 matrix.setValue(ic.chainMembers.get(pos), ic.chainMembers.get(pos+1), greatestImpact);
             }
@@ -125,6 +168,10 @@ public class RandomInputMatrixGenerator {
         return ThreadLocalRandom.current().nextInt(min, max + 1);
     }
     
+    static int randBetween(int min, int max, SplittableRandom random) {
+        return random.nextInt(min, max + 1);
+    }
+    
     
     
 }
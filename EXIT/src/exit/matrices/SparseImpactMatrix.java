@@ -0,0 +1,163 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+import java.util.Arrays;
+
+/**
+ * <tt>SparseImpactMatrix</tt> holds the non-zero relative direct impacts of an <tt>EXITImpactMatrix</tt>
+ * in compressed sparse row form:
+ * for each impactor, the list of the variables it has an impact on and the relative impacts.
+ * Cross-impact matrices are typically mostly zeros,
+ * and a chain continued along a zero impact has no impact,
+ * so walking the chains along the lists instead of whole rows
+ * divides the work at every chain length by the share of non-zero impacts.
+ * <p>The impacted variables of each impactor are listed both in the order of their indices
+ * and in the order of decreasing absolute relative impact (by <i>rank</i>).
+ * The impacts are those of the {@link FrozenImpactMatrix} the sparse matrix is created from.</p>
+ * @author jmpaon
+ */
+public final class SparseImpactMatrix {
+
+    /** Relative direct impacts the lists are made of */
+    final FrozenImpactMatrix source;
+    /** Number of variables in the matrix */
+    final int varCount;
+    /** Position of the first impact of each 0-based impactor in the lists, and the total count at the end */
+    final int[] rowStart;
+    /** 0-based indices of the impacted variables, in index order within each impactor */
+    final int[] columns;
+    /** Relative impacts on the variables of <code>columns</code> */
+    final double[] impacts;
+    /** 0-based indices of the impacted variables, strongest impact first within each impactor */
+    final int[] strongest;
+    /** Relative impacts on the variables of <code>strongest</code> */
+    final double[] strongestImpacts;
+
+
+    /**
+     * Constructor
+     * @param matrix <tt>EXITImpactMatrix</tt> whose non-zero relative impacts are stored
+     */
+    public SparseImpactMatrix(EXITImpactMatrix matrix) {
+        this(matrix.freeze());
+    }
+
+    /**
+     * Constructor
+     * @param source Relative direct impacts whose non-zero values are stored
+     */
+    public SparseImpactMatrix(FrozenImpactMatrix source) {
+        final int varCount = source.varCount;
+        final double[] weights = source.impacts;
+        this.source = source;
+        this.varCount = varCount;
+        this.rowStart = new int[varCount+1];
+        int count = 0;
+        for(int i=0;i<varCount;i++) {
+            rowStart[i] = count;
+            for(int j=0;j<varCount;j++) {
+                if(i != j && weights[i*varCount + j] != 0) count++;
+            }
+        }
+        rowStart[varCount] = count;
+
+        this.columns = new int[count];
+        this.impacts = new double[count];
+        this.strongest = new int[count];
+        this.strongestImpacts = new double[count];
+        Integer[] row = new Integer[varCount];
+        for(int i=0;i<varCount;i++) {
+            final int offset = i*varCount;
+            int p = rowStart[i];
+            for(int j=0;j<varCount;j++) {
+                if(i == j || weights[offset + j] == 0) continue;
+                columns[p] = j;
+                impacts[p] = weights[offset + j];
+                row[p - rowStart[i]] = j;
+                p++;
+            }
+            int degree = rowStart[i+1] - rowStart[i];
+            Arrays.sort(row, 0, degree, (a, b) -> Double.compare(Math.abs(weights[offset + b]), Math.abs(weights[offset + a])));
+            for(int r=0;r<degree;r++) {
+                strongest[rowStart[i] + r] = row[r];
+                strongestImpacts[rowStart[i] + r] = weights[offset + row[r]];
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of variables in the matrix
+     */
+    public int getVarCount() {
+        return varCount;
+    }
+
+    /**
+     * @return Number of non-zero impacts between different variables
+     */
+    public int nonZeroCount() {
+        return rowStart[varCount];
+    }
+
+    /**
+     * @return Share of non-zero impacts of all impacts between different variables
+     */
+    public double density() {
+        return varCount < 2 ? 0 : (double)nonZeroCount() / ((long)varCount * (varCount-1));
+    }
+
+    /**
+     * @param impactor Index of impactor variable
+     * @return Number of variables on which <b>impactor</b> has an impact
+     */
+    public int successorCount(int impactor) {
+        return rowStart[impactor] - rowStart[impactor-1];
+    }
+
+    /**
+     * @param impactor Index of impactor variable
+     * @param k Position in the list of the impacted variables of <b>impactor</b>,
+     * from 0 to <code>successorCount(impactor)-1</code>
+     * @return Index of the <b>k</b>:th impacted variable of <b>impactor</b> in the order of indices
+     */
+    public int successor(int impactor, int k) {
+        assert k >= 0 && k < successorCount(impactor);
+        return columns[rowStart[impactor-1] + k] + 1;
+    }
+
+    /**
+     * @param impactor Index of impactor variable
+     * @param k Position in the list of the impacted variables of <b>impactor</b>,
+     * from 0 to <code>successorCount(impactor)-1</code>
+     * @return Relative impact of <b>impactor</b> on its <b>k</b>:th impacted variable in the order of indices
+     */
+    public double successorImpact(int impactor, int k) {
+        assert k >= 0 && k < successorCount(impactor);
+        return impacts[rowStart[impactor-1] + k];
+    }
+
+    /**
+     * @param impactor Index of impactor variable
+     * @param rank Rank of the impact, 0 for the greatest absolute impact,
+     * less than <code>successorCount(impactor)</code>
+     * @return Index of the variable on which <b>impactor</b> has the <b>rank</b>:th greatest absolute impact
+     */
+    public int successorByRank(int impactor, int rank) {
+        assert rank >= 0 && rank < successorCount(impactor);
+        return strongest[rowStart[impactor-1] + rank] + 1;
+    }
+
+    /**
+     * @return Relative direct impacts in a 0-based flat array,
+     * impact of <i>i</i> on <i>j</i> at index <tt>(i-1) * varCount + (j-1)</tt>
+     */
+    public double[] relativeImpacts() {
+        return source.toArray();
+    }
+
+}
@@ -14,6 +14,7 @@ import java.util.NoSuchElementException;
 import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 /**
  * <code>SquareMatrix</code> represents 
@@ -116,9 +117,10 @@ public class SquareMatrix {
      * @return Sum of values in row with index <b>row</b>
      */
     public double rowSum(int row, boolean absolute) {
+        checkIndex(row);
         double sum = 0;
-        for (int i = 1; i <= varCount; i++) {
-            sum += absolute ? Math.abs(getValue(row, i)) : getValue(row, i);
+        for (int i = (row-1)*varCount; i < row*varCount; i++) {
+            sum += absolute ? Math.abs(values[i]) : values[i];
         }
         return sum;
     }
@@ -132,9 +134,10 @@ public class SquareMatrix {
      * @return Sum of values in column with index <b>column</b>
      */
     public double columnSum(int column, boolean absolute) {
+        checkIndex(column);
         double sum = 0;
-        for (int i = 1; i <= varCount; i++) {
-            sum += absolute ? Math.abs(getValue(i, column)) : getValue(i, column);
+        for (int i = column-1; i < values.length; i += varCount) {
+            sum += absolute ? Math.abs(values[i]) : values[i];
         }
         return sum;
     }
@@ -170,12 +173,8 @@ public class SquareMatrix {
      * @return the maximum value in row <b>row</b>
      */
     public double rowMax(int row, boolean absolute) {
-        double max = absolute ? Math.abs(this.getValue(row, 1)) : this.getValue(row, 1);
-        for (int i = 1; i <= varCount; i++) {
-            if(absolute ? Math.abs(this.getValue(row, i)) > max : this.getValue(row, i) > max)
-                max = absolute ? Math.abs(this.getValue(row, i)) : this.getValue(row, i);
-        }
-        return max;
+        checkIndex(row);
+        return max((row-1)*varCount, 1, absolute);
     }
 
     
@@ -186,12 +185,8 @@ public class SquareMatrix {
      * @return the maximum value in column <b>column</b>
      */
     public double columnMax(int column, boolean absolute) {
-        double max = absolute ? Math.abs(this.getValue(1, column)) : this.getValue(1, column);
-        for (int i = 1; i <= varCount; i++) {
-            if(absolute ? Math.abs(this.getValue(i, column)) > max : this.getValue(i, column) > max)
-                max = absolute ? Math.abs(this.getValue(i, column)) : this.getValue(i, column);
-        }
-        return max;
+        checkIndex(column);
+        return max(column-1, varCount, absolute);
     }
 
     /**
@@ -201,7 +196,7 @@ public class SquareMatrix {
      */
     public double matrixMean(boolean absolute) {
         double sum = 0;
-        for(Double val : this.values) {
+        for(double val : this.values) {
             sum += absolute ? Math.abs(val) : val ;
         }
         return sum / (varCount*varCount);
@@ -444,13 +439,13 @@ public class SquareMatrix {
      * @return 
      */
     final public boolean testValues(Predicate<Double> tester) {
-        for(Double d : values) if(tester.test(d)) return true;
+        for(double d : values) if(tester.test(d)) return true;
         return false;
     }
     
     final public List<Double> collectValues(Predicate<Double> tester) {
         List<Double> list = new LinkedList<>();
-        for(Double d : values) if(tester.test(d)) list.add(d);
+        for(double d : values) if(tester.test(d)) list.add(d);
         return list;
     }
     
@@ -523,29 +518,90 @@ public class SquareMatrix {
     
     
     /**
-     * Sums the products of each entry in <b>row</b> and corresponding entry in <b>col</b>.
-     * @param row Index of row
-     * @param col Index of col
-     * @return Sum of pairwise products of entries in row <b>row</b> and column <b>col</b>.
+     * Side length of the square blocks in which 
+     * {@link SquareMatrix#multiply(double[], double[], int)} computes the product,
+     * chosen so that the blocks of both multiplied matrices fit in the CPU cache.
      */
-    protected double multiplyEntries(int row, int col) {
-        return multiplyEntries(this, this, row, col);
+    static final int MULTIPLY_BLOCK_SIZE = 64;
+    
+    /**
+     * Matrices with at least this many variables are multiplied
+     * by several threads in parallel.
+     */
+    static final int PARALLEL_MULTIPLY_THRESHOLD = 128;
+    
+    
+    /**
+     * Returns the matrix product of this matrix and <b>colMatrix</b>
+     * as a flat array of values.
+     * @param colMatrix Right-hand matrix of the product
+     * @return double[] : values of the product matrix
+     */
+    protected double[] product(SquareMatrix colMatrix) {
+        assert this.varCount == colMatrix.varCount : "Differently sized matrices";
+        return multiply(this.values, colMatrix.values, varCount);
+    }
+    
+    
+    /**
+     * Multiplies two <b>n</b> &times; <b>n</b> matrices stored in flat row-major arrays.
+     * The right-hand matrix is first transposed, 
+     * so that every entry of the product is the sum of pairwise products 
+     * of two contiguous rows.
+     * The product is computed in blocks of {@link SquareMatrix#MULTIPLY_BLOCK_SIZE} rows and columns
+     * so that the rows being multiplied stay in the CPU cache, 
+     * and the row blocks are computed in parallel for matrices 
+     * of at least {@link SquareMatrix#PARALLEL_MULTIPLY_THRESHOLD} variables.
+     * @param left Values of the left-hand matrix
+     * @param right Values of the right-hand matrix
+     * @param n Number of rows and columns in the matrices
+     * @return double[] : values of the product matrix
+     */
+    public static double[] multiply(double[] left, double[] right, int n) {
+        assert left.length == n*n && right.length == n*n : "Differently sized matrices";
+        
+        final double[] transposed = new double[n*n];
+        for(int ii=0;ii<n;ii+=MULTIPLY_BLOCK_SIZE) {
+            int iEnd = Math.min(n, ii+MULTIPLY_BLOCK_SIZE);
+            for(int jj=0;jj<n;jj+=MULTIPLY_BLOCK_SIZE) {
+                int jEnd = Math.min(n, jj+MULTIPLY_BLOCK_SIZE);
+                for(int i=ii;i<iEnd;i++) {
+                    for(int j=jj;j<jEnd;j++) transposed[j*n + i] = right[i*n + j];
+                }
+            }
+        }
         
-        //double result=0;
-        //for (int i = 1; i <= varCount; i++) {
-        //    result += getValue(row, i) * getValue(i, col);
-        //}
-        //return result;
-    }
-    
-    protected static double multiplyEntries(SquareMatrix rowMatrix, SquareMatrix colMatrix, int row, int col) {
-        assert rowMatrix.varCount == colMatrix.varCount : "Differently sized matrices";
-        double result=0;
-        for (int i = 1; i <= rowMatrix.varCount; i++) {
-            result += rowMatrix.getValue(row, i) * colMatrix.getValue(i, col);
+        final double[] product = new double[n*n];
+        IntStream rowBlocks = IntStream.range(0, (n + MULTIPLY_BLOCK_SIZE - 1) / MULTIPLY_BLOCK_SIZE);
+        if(n >= PARALLEL_MULTIPLY_THRESHOLD) rowBlocks = rowBlocks.parallel();
+        rowBlocks.forEach(block -> multiplyRowBlock(left, transposed, product, n, 
+                block*MULTIPLY_BLOCK_SIZE, Math.min(n, (block+1)*MULTIPLY_BLOCK_SIZE)));
+        return product;
+    }
+    
+    
+    /**
+     * Computes rows <b>rowStart</b>..<b>rowEnd</b>-1 of the product of <b>left</b> 
+     * and the matrix whose transpose is <b>transposed</b>.
+     */
+    private static void multiplyRowBlock(double[] left, double[] transposed, double[] product, int n, int rowStart, int rowEnd) {
+        for(int jj=0;jj<n;jj+=MULTIPLY_BLOCK_SIZE) {
+            int jEnd = Math.min(n, jj+MULTIPLY_BLOCK_SIZE);
+            for(int kk=0;kk<n;kk+=MULTIPLY_BLOCK_SIZE) {
+                int kEnd = Math.min(n, kk+MULTIPLY_BLOCK_SIZE);
+                for(int i=rowStart;i<rowEnd;i++) {
+                    int row = i*n;
+                    for(int j=jj;j<jEnd;j++) {
+                        int col = j*n;
+                        double sum = 0;
+                        for(int k=kk;k<kEnd;k++) sum += left[row + k] * transposed[col + k];
+                        product[row + j] += sum;
+                    }
+                }
+            }
         }
-        return result;        
     }
+    
 
     /**
      * Multiplies the matrix by itself (resulting in power matrix).
@@ -553,11 +609,8 @@ public class SquareMatrix {
      */
     public SquareMatrix power() {
         MicmacMatrix powerMatrix = new MicmacMatrix(this);
-        for (int row = 1; row <= varCount; row++) {
-            for (int col = 1; col <= varCount; col++) {
-                powerMatrix.setValue(row, col, this.multiplyEntries(row, col));
-            }
-        }
+        double[] product = this.product(this);
+        System.arraycopy(product, 0, powerMatrix.values, 0, product.length);
         return powerMatrix;
     }
     
@@ -657,6 +710,32 @@ public class SquareMatrix {
         return index > 0 && index <= this.getVarCount();
     }
     
+    /**
+     * Returns the maximum of the <b>varCount</b> values of a row or column,
+     * starting from the 0-based index <b>from</b> and <b>stride</b> indices apart.
+     * @param from 0-based index of the first value
+     * @param stride Distance between the indices of consecutive values, 1 for a row and <tt>varCount</tt> for a column
+     * @param absolute If <i>true</i>, the maximum of absolute values is returned
+     * @return the maximum value
+     */
+    private double max(int from, int stride, boolean absolute) {
+        double max = absolute ? Math.abs(values[from]) : values[from];
+        for (int i = 1, index = from + stride; i < varCount; i++, index += stride) {
+            double v = absolute ? Math.abs(values[index]) : values[index];
+            if(v > max) max = v;
+        }
+        return max;
+    }
+    
+    /**
+     * Throws an <tt>IndexOutOfBoundsException</tt> if <b>index</b> is not a valid index in the matrix.
+     * @param index Index to be tested
+     */
+    private void checkIndex(int index) throws IndexOutOfBoundsException {
+        if(!isIndexValid(index)) 
+            throw new IndexOutOfBoundsException(String.format("No variable with index %d, varCount for the matrix is %d.", index, varCount));
+    }
+    
     
 
 }
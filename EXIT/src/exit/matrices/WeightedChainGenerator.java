@@ -0,0 +1,297 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package exit.matrices;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * <tt>WeightedChainGenerator</tt> draws random impact chains of an <tt>EXITImpactMatrix</tt>
+ * for importance sampling.
+ * A chain is built hop by hop: from the current variable, the next intermediary
+ * is drawn from the variables not yet in the chain
+ * in proportion to the absolute relative impact of the current variable on them.
+ * Chains that go through zero impacts are never drawn,
+ * so in sparse matrices the sampled chains are those that have an impact at all.
+ * <p>Each draw returns the relative impact of the drawn chain
+ * divided by the probability of drawing it,
+ * which is an unbiased estimate of the summed impact of all chains
+ * of the same length between the same variables.
+ * With <i>S<sub>k</sub></i> the summed absolute impact of the <i>k</i>th variable of the chain
+ * on the variables that were available for the next hop,
+ * the estimate is the product of <i>S<sub>k</sub></i> with the sign of each drawn impact,
+ * times the impact of the last intermediary on the impacted variable.</p>
+ * <p>The next variable is drawn with the alias method from a table of each row of the matrix,
+ * built once per matrix, and drawn again if it is already in the chain.
+ * When most of the impact of the current variable is on variables already in the chain,
+ * the next variable is picked by scanning the available variables instead.</p>
+ * <p>An instance holds the state of one sampling thread
+ * and must not be used by several threads at the same time;
+ * {@link WeightedChainGenerator#copy()} returns a generator for another thread.</p>
+ * @author jmpaon
+ */
+public final class WeightedChainGenerator {
+
+    /**
+     * Least share of the impact of the current variable that must be available
+     * for the next variable to be drawn from the alias table
+     */
+    private static final double REJECTION_LIMIT = 0.25;
+
+    /** Number of variables in the sampled matrix */
+    private final int varCount;
+    /** Relative direct impacts in a 0-based flat array, row by row, shared with the <tt>FrozenImpactMatrix</tt> */
+    private final double[] weights;
+    /** Relative direct impacts in a 0-based flat array, column by column */
+    private final double[] transposed;
+    /** Summed absolute relative impacts of each variable */
+    private final double[] rowTotals;
+    /** Probability of keeping the drawn column of the alias table of each row */
+    private final double[] aliasProbabilities;
+    /** Alternative column of the alias table of each row */
+    private final int[] aliases;
+
+    /** 0-based variables of the chain being drawn, impactor first */
+    private final int[] path;
+    /** Variables that are in the chain being drawn are marked with the current <b>stamp</b> */
+    private final int[] marks;
+    private int stamp = 0;
+    /** Estimate of a single chain length */
+    private final double[] single = new double[1];
+
+
+    /**
+     * Constructor
+     * @param matrix <tt>EXITImpactMatrix</tt> whose impact chains are sampled
+     */
+    public WeightedChainGenerator(EXITImpactMatrix matrix) {
+        this(matrix.freeze());
+    }
+
+    /**
+     * Constructor
+     * @param impacts Relative impacts of the matrix whose impact chains are sampled
+     */
+    public WeightedChainGenerator(FrozenImpactMatrix impacts) {
+        this.varCount = impacts.varCount;
+        this.weights = impacts.impacts;
+        this.transposed = impacts.transposed;
+        this.rowTotals = new double[varCount];
+        this.aliasProbabilities = new double[varCount*varCount];
+        this.aliases = new int[varCount*varCount];
+        for(int row=0;row<varCount;row++) buildAliasTable(row);
+        this.path = new int[varCount];
+        this.marks = new int[varCount];
+    }
+
+    private WeightedChainGenerator(WeightedChainGenerator source) {
+        this.varCount = source.varCount;
+        this.weights = source.weights;
+        this.transposed = source.transposed;
+        this.rowTotals = source.rowTotals;
+        this.aliasProbabilities = source.aliasProbabilities;
+        this.aliases = source.aliases;
+        this.path = new int[varCount];
+        this.marks = new int[varCount];
+    }
+
+
+    /**
+     * Returns a new generator for the same matrix,
+     * sharing the alias tables of this generator
+     * but having its own state for drawing chains.
+     * @return WeightedChainGenerator
+     */
+    public WeightedChainGenerator copy() {
+        return new WeightedChainGenerator(this);
+    }
+
+
+    /**
+     * Builds the alias table of the absolute relative impacts of row <b>row</b>
+     * with Vose's method.
+     */
+    private void buildAliasTable(int row) {
+        final int from = row*varCount;
+        double total = 0;
+        for(int col=0;col<varCount;col++) total += Math.abs(weights[from + col]);
+        rowTotals[row] = total;
+        if(total == 0) return;
+
+        double[] scaled = new double[varCount];
+        int[] small = new int[varCount], large = new int[varCount];
+        int smallCount = 0, largeCount = 0;
+        for(int col=0;col<varCount;col++) {
+            scaled[col] = Math.abs(weights[from + col]) * varCount / total;
+            if(scaled[col] < 1) small[smallCount++] = col;
+            else large[largeCount++] = col;
+        }
+        while(smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount], l = large[--largeCount];
+            aliasProbabilities[from + s] = scaled[s];
+            aliases[from + s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if(scaled[l] < 1) small[smallCount++] = l;
+            else large[largeCount++] = l;
+        }
+        /* Whatever is left is 1 up to rounding errors */
+        while(largeCount > 0) aliasProbabilities[from + large[--largeCount]] = 1;
+        while(smallCount > 0) aliasProbabilities[from + small[--smallCount]] = 1;
+    }
+
+
+    /**
+     * Draws a chain of <b>length</b> variables from <b>impactorIndex</b> to <b>impactedIndex</b>
+     * with each intermediary drawn in proportion to the absolute impact of the previous variable on it,
+     * and returns the relative impact of the chain divided by its probability of being drawn.
+     * The mean of the returned values over many draws is the summed impact of all such chains.
+     * @param impactorIndex Index of the impactor variable
+     * @param impactedIndex Index of the impacted variable
+     * @param length Number of variables in the chain, including impactor and impacted
+     * @param random Source of randomness
+     * @return double : estimate of the summed relative impact of the chains
+     */
+    public double randomChainEstimate(int impactorIndex, int impactedIndex, int length, SplittableRandom random) {
+        assert length > 2;
+        randomPrefixEstimates(impactorIndex, impactedIndex, length, length, random, single);
+        return single[0];
+    }
+
+
+    /**
+     * Draws a chain of <b>maxLength</b> variables from <b>impactorIndex</b> to <b>impactedIndex</b>
+     * like {@link WeightedChainGenerator#randomChainEstimate(int, int, int, java.util.SplittableRandom)}
+     * and puts the estimates given by each of its prefixes into <b>estimates</b>.
+     * The first <i>k</i> intermediaries of the chain are drawn
+     * the same way as those of a chain of <i>k</i>+2 variables,
+     * so each prefix followed by the impacted variable gives an unbiased estimate
+     * of the summed impact of the chains of its length.
+     * @param impactorIndex Index of the impactor variable
+     * @param impactedIndex Index of the impacted variable
+     * @param minLength Length of the shortest chain whose estimate is returned, at least 3
+     * @param maxLength Length of the longest chain whose estimate is returned
+     * @param random Source of randomness
+     * @param estimates Array for the estimates: 
+     * the estimate of chains of length <i>l</i> is put at index <i>l</i> - <b>minLength</b>
+     */
+    public void randomPrefixEstimates(int impactorIndex, int impactedIndex, int minLength, int maxLength, SplittableRandom random, double[] estimates) {
+        randomPrefixEstimates(impactorIndex, impactedIndex, minLength, maxLength, false, random, estimates);
+    }
+
+
+    /**
+     * Like {@link WeightedChainGenerator#randomPrefixEstimates(int, int, int, int, java.util.SplittableRandom, double[])},
+     * but if <b>sumLastHop</b> is <i>true</i>, the last intermediary of each chain is not drawn:
+     * the estimate given for chains of length <i>l</i> is the estimate of the drawn prefix
+     * of <i>l</i>-3 intermediaries times the summed impact of all its continuations
+     * through any of the remaining variables to the impacted variable.
+     * The sum is exact, so the estimates have less variance; it costs O(<i>n</i>) for each chain length.
+     * @param impactorIndex Index of the impactor variable
+     * @param impactedIndex Index of the impacted variable
+     * @param minLength Length of the shortest chain whose estimate is returned, at least 3
+     * @param maxLength Length of the longest chain whose estimate is returned
+     * @param sumLastHop If <i>true</i>, the last intermediaries are summed over instead of drawn
+     * @param random Source of randomness
+     * @param estimates Array for the estimates: 
+     * the estimate of chains of length <i>l</i> is put at index <i>l</i> - <b>minLength</b>
+     */
+    public void randomPrefixEstimates(int impactorIndex, int impactedIndex, int minLength, int maxLength, boolean sumLastHop, SplittableRandom random, double[] estimates) {
+        assert impactorIndex != impactedIndex;
+        assert minLength > 2 && minLength <= maxLength && maxLength <= varCount;
+        assert estimates.length > maxLength - minLength;
+        final int impactor = impactorIndex-1, impacted = impactedIndex-1;
+        newChain(impactor, impacted);
+
+        int current = impactor;
+        double estimate = 1;
+        for(int position=1; position<maxLength-1; position++) {
+            final int from = current*varCount;
+            if(sumLastHop && position+2 >= minLength) {
+                estimates[position+2-minLength] = estimate * lastHopSum(from, impacted);
+                if(position+2 == maxLength) return;
+            }
+            double total = rowTotals[current];
+            double excluded = Math.abs(weights[from + impacted]);
+            for(int k=0;k<position;k++) excluded += Math.abs(weights[from + path[k]]);
+            double available = total - excluded;
+
+            int next;
+            if(available > total * REJECTION_LIMIT) {
+                do {
+                    /* The integer part of the scaled random number picks the column, the fraction decides the alias */
+                    double u = random.nextDouble() * varCount;
+                    int col = Math.min((int)u, varCount-1);
+                    next = u - col < aliasProbabilities[from + col] ? col : aliases[from + col];
+                } while(marks[next] == stamp || weights[from + next] == 0);
+            } else {
+                available = 0;
+                for(int v=0;v<varCount;v++) {
+                    if(marks[v] != stamp) available += Math.abs(weights[from + v]);
+                }
+                if(available == 0) {
+                    /* No chain continues from here */
+                    Arrays.fill(estimates, Math.max(position+2-minLength, 0), maxLength-minLength+1, 0);
+                    return;
+                }
+                next = scan(from, random.nextDouble() * available);
+            }
+
+            estimate *= weights[from + next] < 0 ? -available : available;
+            path[position] = next;
+            marks[next] = stamp;
+            current = next;
+            if(!sumLastHop && position+2 >= minLength) estimates[position+2-minLength] = estimate * weights[current*varCount + impacted];
+        }
+    }
+
+
+    /**
+     * Returns the summed impact of the variable whose row starts at <b>from</b> 
+     * on <b>impacted</b> through each variable that is not in the chain.
+     */
+    private double lastHopSum(int from, int impacted) {
+        final int column = impacted*varCount;
+        double sum = 0;
+        for(int v=0;v<varCount;v++) {
+            if(marks[v] != stamp) sum += weights[from + v] * transposed[column + v];
+        }
+        return sum;
+    }
+
+
+    /**
+     * Starts a new chain from <b>impactor</b> to <b>impacted</b>.
+     */
+    private void newChain(int impactor, int impacted) {
+        if(++stamp == 0) {
+            Arrays.fill(marks, 0);
+            stamp = 1;
+        }
+        path[0] = impactor;
+        marks[impactor] = stamp;
+        marks[impacted] = stamp;
+    }
+
+
+    /**
+     * Returns the available variable at which the cumulative absolute impact
+     * of row starting at <b>from</b> exceeds <b>target</b>.
+     */
+    private int scan(int from, double target) {
+        int last = -1;
+        for(int v=0;v<varCount;v++) {
+            if(marks[v] == stamp) continue;
+            double w = Math.abs(weights[from + v]);
+            if(w == 0) continue;
+            last = v;
+            target -= w;
+            if(target < 0) return v;
+        }
+        /* Rounding errors may leave a tiny remainder of the target */
+        return last;
+    }
+
+}
@@ -18,10 +18,17 @@ import java.util.Map;
  */
 public class EXITresult {
     public final CrossImpactMatrix resultMatrix;
+    /** Standard errors of the estimated cells of <b>resultMatrix</b>; <i>null</i> if not estimated by sampling */
+    public final CrossImpactMatrix standardErrorMatrix;
     public final List<Object> printables;
 
     public EXITresult(CrossImpactMatrix resultMatrix) throws FileNotFoundException {
+        this(resultMatrix, null);
+    }
+    
+    public EXITresult(CrossImpactMatrix resultMatrix, CrossImpactMatrix standardErrorMatrix) throws FileNotFoundException {
         this.resultMatrix = resultMatrix;
+        this.standardErrorMatrix = standardErrorMatrix;
         this.printables = new LinkedList<>();
     }
     
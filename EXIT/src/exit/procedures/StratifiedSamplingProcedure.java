@@ -5,15 +5,21 @@
  */
 package exit.procedures;
 
+import exit.EXITexception;
 import exit.matrices.CrossImpactMatrix;
 import exit.estimators.QuickSampler;
+import exit.estimators.SampledEstimate;
 import exit.estimators.Sampler;
+import exit.estimators.StrongestChainFinder;
 import exit.io.Option;
 import exit.io.Options;
 import exit.io.EXITargumentException;
+import exit.matrices.ImpactChain;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -28,22 +34,87 @@ public class StratifiedSamplingProcedure extends EXITprocedure {
         assert input != null;
         
         Integer computeUpToLength = input.options.queryInt("-c");
-        Integer sampleSize = input.options.hasValue("-s") ? input.options.queryInt("-s") : 1000000;
+        Double timeBudget = input.options.hasValue("-time") ? input.options.queryDouble("-time") : null;
+        Double snapshotInterval = input.options.hasValue("-snapshot") ? input.options.queryDouble("-snapshot") : null;
+        Integer sampleSize = input.options.hasValue("-s") ? input.options.queryInt("-s") : timeBudget != null ? 10000 : 1000000;
+        Integer threads = input.options.hasValue("-threads") ? input.options.queryInt("-threads") : Runtime.getRuntime().availableProcessors();
+        Long seed = input.options.hasValue("-seed") ? input.options.queryLong("-seed") : null;
+        Double tolerance = input.options.hasValue("-tol") ? input.options.queryDouble("-tol") : 0;
+        Double relativeTolerance = input.options.hasValue("-rtol") ? input.options.queryDouble("-rtol") : 0;
+        boolean importanceSampling = input.options.hasValue("-is");
+        boolean sharedPermutations = input.options.hasValue("-shared");
+        boolean exactLastHop = input.options.hasValue("-rb");
+        Long sampleBudget = input.options.hasValue("-budget") ? input.options.queryLong("-budget") : null;
+        Integer strongestCount = input.options.hasValue("-top") ? input.options.queryInt("-top") : null;
+        Integer strongestPairCount = input.options.hasValue("-toppairs") ? input.options.queryInt("-toppairs") : null;
         
         QuickSampler sampler = new QuickSampler(input.directImpactMatrix, computeUpToLength, reportingStream);
+        sampler.setParallelism(threads);
+        if(seed != null) sampler.setSeed(seed);
+        sampler.setTolerance(tolerance, relativeTolerance);
+        sampler.setImportanceSampling(importanceSampling);
+        sampler.setSharedPermutations(sharedPermutations);
+        sampler.setExactLastHop(exactLastHop);
+        if(sampleBudget != null) sampler.setSampleBudget(sampleBudget);
         Timer samplingTimer = new Timer(true);
-        CrossImpactMatrix summedImpactMatrix = sampler.estimateSummedImpactMatrix(sampleSize);
+        if(timeBudget != null) {
+            sampler.setTimeBudget(Math.max((long)(timeBudget * 1000), 1));
+            if(snapshotInterval != null) {
+                String outputfilename = input.options.hasValue("-o") ? input.options.queryString("-o") : null;
+                int[] snapshotCount = {0};
+                sampler.setSnapshots(Math.max((long)(snapshotInterval * 1000), 1), snapshot -> 
+                        printSnapshot(snapshot, ++snapshotCount[0], samplingTimer.elapsed(), outputfilename, reportingStream));
+            }
+        }
+        SampledEstimate estimate = sampler.estimateWithStandardError(sampleSize);
+        CrossImpactMatrix summedImpactMatrix = estimate.estimate;
+        
+        Timer searchTimer = new Timer(true);
+        StrongestChainFinder finder = new StrongestChainFinder(input.directImpactMatrix, reportingStream);
+        finder.setParallelism(threads);
+        List<ImpactChain> strongestChains = strongestCount != null ? finder.strongestChains(strongestCount) : null;
+        List<ImpactChain> strongestPairChains = strongestPairCount != null ? finder.strongestChainsByPair(strongestPairCount) : null;
+        Timer.Time searchDuration = searchTimer.stopGet();
         Timer.Time duration = samplingTimer.stopGet();
         // String duration = samplingTimer.stop(Timer.TimeUnit.S);
         
-        EXITresult result = new EXITresult(summedImpactMatrix);
+        EXITresult result = new EXITresult(summedImpactMatrix, estimate.standardError);
         
         
         StringBuilder computationDetails = new StringBuilder();
         String inputfilename = input.options.queryString("-i");
         computationDetails.append(String.format("%30.30s: %s%n", "Input file name", inputfilename));
-        computationDetails.append(String.format("%30.30s: %s variables%n", "Full computation up to", computeUpToLength != null ? computeUpToLength : sampler.sensibleComputeUpToLength()));
-        computationDetails.append(String.format("%30.30s: %s chains%n", "Sample size", sampleSize));
+        computationDetails.append(String.format("%30.30s: %s variables%n", "Full computation up to", sampler.getComputedLength()));
+        computationDetails.append(String.format("%30.30s: %s chains%n", 
+                timeBudget != null ? "Sample size per round" : sampleBudget != null ? "Pilot sample size" : "Sample size", sampleSize));
+        if(timeBudget != null) {
+            computationDetails.append(String.format("%30.30s: %s s%n", "Time budget", timeBudget));
+        } else if(sampleBudget != null) {
+            computationDetails.append(String.format("%30.30s: %s draws%n", "Sample budget", sampleBudget));
+        }
+        computationDetails.append(String.format("%30.30s: %s%n", "Sampling", importanceSampling ? "importance sampling" : "uniform"));
+        computationDetails.append(String.format("%30.30s: %s%n", "Chain lengths sampled", sharedPermutations ? "together" : "separately"));
+        computationDetails.append(String.format("%30.30s: %s%n", "Last intermediary", exactLastHop ? "summed exactly" : "sampled"));
+        if(sampler.isAdaptive()) {
+            computationDetails.append(String.format("%30.30s: %s absolute, %s relative%n", "Tolerance", tolerance, relativeTolerance));
+        }
+        if(sampler.isAdaptive() || sampleBudget != null || timeBudget != null) {
+            computationDetails.append(sharedPermutations
+                    ? String.format("%30.30s: %s chains in %s draws%n", "Sampled in total", sampler.getSampledChainCount(), sampler.getDrawCount())
+                    : String.format("%30.30s: %s chains%n", "Sampled in total", sampler.getSampledChainCount()));
+        }
+        computationDetails.append(String.format("%30.30s: %s variable pairs%n", "Unresolved standard errors", estimate.unresolvedCount()));
+        if(strongestCount != null) {
+            computationDetails.append(String.format("%30.30s: %s chains%n", "Strongest chains listed", strongestCount));
+        }
+        if(strongestPairCount != null) {
+            computationDetails.append(String.format("%30.30s: %s chains per variable pair%n", "Strongest chains listed", strongestPairCount));
+        }
+        computationDetails.append(String.format("%30.30s: %s%n", "Threads", threads));
+        computationDetails.append(String.format("%30.30s: %s%n", "Seed", seed != null ? seed : "none"));
+        if(strongestCount != null || strongestPairCount != null) {
+            computationDetails.append(String.format("%30.30s: %s%n", "Strongest chain search", searchDuration.value(Timer.TimeUnit.S)));
+        }
         computationDetails.append(String.format("%30.30s: %s%n", "Process duration", duration.value(Timer.TimeUnit.S)));
         
         result.addPrintable("EXIT analysis with the arguments:", computationDetails.toString());
@@ -51,10 +122,23 @@ public class StratifiedSamplingProcedure extends EXITprocedure {
         result.addPrintable("Direct impact matrix normalized:", input.directImpactMatrix.normalize().toString());
         result.addPrintable("Direct impact matrix variable classification:", input.directImpactMatrix.getInfluenceDependencyClassification());
         result.addPrintable("Summed impact matrix:", summedImpactMatrix.toString());
+        result.addPrintable("Standard errors of summed impact matrix (0 where all chains were computed or the sample showed no variance):", estimate.standardError.toString());
+        if(estimate.unresolvedCount() > 0) {
+            result.addPrintable("Unresolved cells (1 where all chains sampled from a set of chains had the same impact, so the standard error and confidence interval are not reliable):", 
+                    estimate.unresolvedCells().toString());
+        }
+        result.addPrintable("Summed impact matrix 95% confidence interval lower bounds (not reliable in unresolved cells):", estimate.lowerBound(QuickSampler.CONFIDENCE_Z).toString());
+        result.addPrintable("Summed impact matrix 95% confidence interval upper bounds (not reliable in unresolved cells):", estimate.upperBound(QuickSampler.CONFIDENCE_Z).toString());
         result.addPrintable("Summed impact matrix normalized:", summedImpactMatrix.normalize().toString());
         result.addPrintable("Summed impact matrix variable classification:", summedImpactMatrix.getInfluenceDependencyClassification());
         result.addPrintable("Difference matrix of normalized output and input matrices (how the impacts change):", 
                 summedImpactMatrix.normalize().differenceMatrix(input.directImpactMatrix.normalize()).toString());
+        if(strongestChains != null) {
+            result.addPrintable(String.format("%d strongest impact chains:", strongestCount), chainList(strongestChains));
+        }
+        if(strongestPairChains != null) {
+            result.addPrintable(String.format("%d strongest impact chains of each variable pair:", strongestPairCount), chainList(strongestPairChains));
+        }
         
         
         return result;
@@ -65,6 +149,49 @@ public class StratifiedSamplingProcedure extends EXITprocedure {
         return compute(input, null);
     }
     
+    /**
+     * @param chains Impact chains
+     * @return The chains one per line
+     */
+    private static String chainList(List<ImpactChain> chains) {
+        StringBuilder list = new StringBuilder();
+        for(ImpactChain chain : chains) list.append(chain.toString()).append(System.lineSeparator());
+        return list.toString();
+    }
+    
+    /**
+     * Prints an intermediate estimate of the summed impact matrix 
+     * to a file named after the output file name and <b>number</b>,
+     * or to <b>reportingStream</b> if there is no output file.
+     * @param snapshot Intermediate estimate
+     * @param number Number of the intermediate estimate, starting from 1
+     * @param elapsed Time elapsed since the start of the sampling
+     * @param outputfilename Output file name, or <i>null</i>
+     * @param reportingStream Stream for reporting, or <i>null</i>
+     */
+    private void printSnapshot(SampledEstimate snapshot, int number, Timer.Time elapsed, String outputfilename, PrintStream reportingStream) {
+        String heading = String.format("Intermediate summed impact matrix %d after %s (%d chains sampled):", 
+                number, elapsed.value(Timer.TimeUnit.S), snapshot.sampledChainCount);
+        if(outputfilename != null) {
+            String snapshotfilename = String.format("%s.snapshot%d", outputfilename, number);
+            try(PrintStream output = new PrintStream(new File(snapshotfilename))) {
+                EXITresult result = new EXITresult(snapshot.estimate, snapshot.standardError);
+                result.addPrintable(heading, snapshot.estimate.toString());
+                result.addPrintable("Standard errors of intermediate summed impact matrix:", snapshot.standardError.toString());
+                if(snapshot.unresolvedCount() > 0) {
+                    result.addPrintable("Unresolved cells of intermediate summed impact matrix:", snapshot.unresolvedCells().toString());
+                }
+                result.print(output);
+            } catch(FileNotFoundException ex) {
+                throw new EXITexception("Cannot write intermediate estimate to %s", snapshotfilename);
+            }
+            if(reportingStream != null) reportingStream.printf("Intermediate estimate %d written to %s%n", number, snapshotfilename);
+        } else if(reportingStream != null) {
+            reportingStream.println(heading);
+            reportingStream.println(snapshot.estimate.toString());
+        }
+    }
+    
     /**
      * Provides the <tt>Options</tt> instance to be used with this procedure
      * @param args
@@ -78,14 +205,34 @@ public class StratifiedSamplingProcedure extends EXITprocedure {
         Option<Integer> optComputeTo = new Option<Integer>("-c", "full computation up to chain length", true, false, Integer::valueOf);
         Option<String> optOutputfile = new Option<String>("-o", "output file name", true, false, String::valueOf);
         Option<Character> optSeparator = new Option<Character>("-sep", "separator character", true, false, (String v) -> v.charAt(0));
+        Option<Integer> optThreads = new Option<Integer>("-threads", "number of threads", true, false, Integer::valueOf);
+        Option<Long> optSeed = new Option<Long>("-seed", "random seed", true, false, Long::valueOf);
+        Option<Double> optTolerance = new Option<Double>("-tol", "absolute tolerance of sampled estimates", true, false, Double::valueOf);
+        Option<Double> optRelativeTolerance = new Option<Double>("-rtol", "relative tolerance of sampled estimates", true, false, Double::valueOf);
+        Option<Boolean> optImportanceSampling = new Option<Boolean>("-is", "importance sampling", false, false, Boolean::valueOf);
+        Option<Boolean> optSharedPermutations = new Option<Boolean>("-shared", "sample all chain lengths together", false, false, Boolean::valueOf);
+        Option<Boolean> optExactLastHop = new Option<Boolean>("-rb", "sum last intermediary of sampled chains exactly", false, false, Boolean::valueOf);
+        Option<Long> optSampleBudget = new Option<Long>("-budget", "total sample budget", true, false, Long::valueOf);
+        Option<Double> optTimeBudget = new Option<Double>("-time", "time budget of sampling in seconds", true, false, Double::valueOf);
+        Option<Double> optSnapshotInterval = new Option<Double>("-snapshot", "interval of intermediate estimates in seconds", true, false, Double::valueOf);
+        Option<Integer> optStrongestCount = new Option<Integer>("-top", "number of strongest impact chains listed", true, false, Integer::valueOf);
+        Option<Integer> optStrongestPairCount = new Option<Integer>("-toppairs", "number of strongest impact chains listed for each variable pair", true, false, Integer::valueOf);
 
         optMaxImpact.addCondition(v -> v > 0, "Maximum impact value must be greater than 0");
         optSampleSize.addCondition(v -> v > 0, "Sample size must be greater than 0");
         optComputeTo.addCondition(v -> v >= 2,  "Computation length must be 2 or greater");
         optComputeTo.addCondition(v -> v <= 20, "Full computation length greater than 20 is not supported");
+        optThreads.addCondition(v -> v > 0, "Number of threads must be greater than 0");
+        optTolerance.addCondition(v -> v > 0, "Tolerance must be greater than 0");
+        optRelativeTolerance.addCondition(v -> v > 0, "Relative tolerance must be greater than 0");
+        optSampleBudget.addCondition(v -> v > 0, "Sample budget must be greater than 0");
+        optTimeBudget.addCondition(v -> v > 0, "Time budget must be greater than 0");
+        optSnapshotInterval.addCondition(v -> v > 0, "Snapshot interval must be greater than 0");
+        optStrongestCount.addCondition(v -> v > 0, "Number of strongest chains must be greater than 0");
+        optStrongestPairCount.addCondition(v -> v > 0, "Number of strongest chains per variable pair must be greater than 0");
 
         Options ops = new Options();
-        ops.addOption(optInputfile, optMaxImpact, optSampleSize, optComputeTo, optOutputfile, optSeparator);
+        ops.addOption(optInputfile, optMaxImpact, optSampleSize, optComputeTo, optOutputfile, optSeparator, optThreads, optSeed, optTolerance, optRelativeTolerance, optImportanceSampling, optSharedPermutations, optExactLastHop, optSampleBudget, optTimeBudget, optSnapshotInterval, optStrongestCount, optStrongestPairCount);
         ops.setUsageText("Usage: java -jar exit.jar [-optionid optionvalue]...\n" + 
                 "Example: java -jar exit.jar -i inputfile.csv -m 5 -s 300000 -c 5");
         
@@ -64,6 +64,14 @@ public class Timer {
         return new Time(stopTime-startTime);
     }
     
+    /**
+     * @return Time elapsed since the start of the running timer
+     */
+    public Time elapsed() {
+        if(!running) throw new IllegalStateException("Timer is not running");
+        return new Time(System.currentTimeMillis()-startTime);
+    }
+    
     
     
     